@@ -0,0 +1,148 @@
+package at.dhyan.open_imaging;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events of {@link GifDecoder}. This class is optional:
+ * the decoder loads it reflectively and emits no events if it is missing or
+ * the JDK has no Flight Recorder. Events are only created while a recording
+ * has them enabled.
+ */
+final class GifEvents implements GifDecoder.Tracer {
+
+    @Override
+    public Object beginParse() {
+        final ParseEvent event = new ParseEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endParse(final Object e, final int width, final int height, final int frames,
+                         final long compressedBytes) {
+        final ParseEvent event = (ParseEvent) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.width = width;
+            event.height = height;
+            event.frames = frames;
+            event.compressedBytes = compressedBytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginDecode() {
+        final DecodeEvent event = new DecodeEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endDecode(final Object e, final int frameIndex, final int width, final int height,
+                          final long compressedBytes, final boolean interlaced) {
+        final DecodeEvent event = (DecodeEvent) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.frameIndex = frameIndex;
+            event.width = width;
+            event.height = height;
+            event.compressedBytes = compressedBytes;
+            event.interlaced = interlaced;
+            event.commit();
+        }
+    }
+
+    @Override
+    public Object beginDraw() {
+        final DrawEvent event = new DrawEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endDraw(final Object e, final int frameIndex, final int x, final int y, final int width,
+                        final int height, final int disposalMethod, final boolean interlaced) {
+        final DrawEvent event = (DrawEvent) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.frameIndex = frameIndex;
+            event.x = x;
+            event.y = y;
+            event.width = width;
+            event.height = height;
+            event.disposalMethod = disposalMethod;
+            event.interlaced = interlaced;
+            event.commit();
+        }
+    }
+
+    @Name("at.dhyan.open_imaging.GifParse")
+    @Label("GIF Parse")
+    @Category({"Open Imaging", "GIF Decoder"})
+    @Description("Reading the blocks of a GIF image, without decoding its frames")
+    static final class ParseEvent extends Event {
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Frames")
+        int frames;
+        @Label("Compressed Size")
+        @DataAmount
+        long compressedBytes;
+    }
+
+    @Name("at.dhyan.open_imaging.GifDecode")
+    @Label("GIF LZW Decode")
+    @Category({"Open Imaging", "GIF Decoder"})
+    @Description("Decoding the image data of a frame into palette indices, rows in final order")
+    static final class DecodeEvent extends Event {
+        @Label("Frame Index")
+        int frameIndex;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Compressed Size")
+        @DataAmount
+        long compressedBytes;
+        @Label("Interlaced")
+        boolean interlaced;
+    }
+
+    @Name("at.dhyan.open_imaging.GifDrawFrame")
+    @Label("GIF Draw Frame")
+    @Category({"Open Imaging", "GIF Decoder"})
+    @Description("Drawing a decoded frame onto the canvas, including disposal")
+    static final class DrawEvent extends Event {
+        @Label("Frame Index")
+        int frameIndex;
+        @Label("X")
+        int x;
+        @Label("Y")
+        int y;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Disposal Method")
+        int disposalMethod;
+        @Label("Interlaced")
+        boolean interlaced;
+    }
+}
@@ -0,0 +1,149 @@
+package at.dhyan.open_imaging;
+
+import at.dhyan.open_imaging.GifDecoder.BitReader;
+import at.dhyan.open_imaging.GifDecoder.CachePolicy;
+import at.dhyan.open_imaging.GifDecoder.DecodedFrame;
+import at.dhyan.open_imaging.GifDecoder.GifFrame;
+import at.dhyan.open_imaging.GifDecoder.GifImage;
+import at.dhyan.open_imaging.GifDecoder.LzwDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the stages of decoding a GIF image one by one, and the whole
+ * decoding compared to Kevin Weiner's decoder. One operation processes all
+ * frames of an image. Run with {@code make jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GifDecoderBenchmark {
+    @Param({"c64", "cat", "cats", "chicken", "comic", "cradle", "dance", "dancing", "dispose_background_1",
+            "dispose_background_2", "dispose_none_1", "dispose_none_2", "dispose_prev", "eat_book", "fish",
+            "geo1", "geo2", "hand", "hand-cold", "hands", "just_do_it", "mario", "prom", "run", "sample",
+            "sample_trans", "science", "sign", "smile", "steps", "stick_man", "train"})
+    public String image;
+
+    private byte[] data; // Raw file content
+    private GifImage gif; // Parsed, frames are drawn by the benchmarks
+    private final BitReader bits = new BitReader();
+    private final LzwDecoder lzw = new LzwDecoder();
+    private byte[] indices; // Output of LZW decoding, fits the largest frame
+    private DecodedFrame[] decoded; // Input of compositing, per frame
+
+    @Setup
+    public void setup() throws IOException {
+        data = load(image);
+        gif = GifDecoder.read(data);
+        gif.setCachePolicy(CachePolicy.NONE);
+        gif.getFrame(0); // Creates the canvas
+        int maxSize = 0;
+        decoded = new DecodedFrame[gif.getFrameCount()];
+        for (int i = 0; i < decoded.length; i++) {
+            final GifFrame fr = gif.frames.get(i);
+            maxSize = Math.max(maxSize, fr.wh);
+            decoded[i] = gif.decodeFrame(i, lzw, null);
+        }
+        indices = new byte[maxSize];
+    }
+
+    /**
+     * Reads the codes of all frames with a fixed code size of 12 bits,
+     * without building a code table.
+     */
+    @Benchmark
+    public int bitReader() {
+        int sum = 0;
+        bits.setNumberOfBitsToRead(12);
+        for (final GifFrame fr : gif.frames) {
+            bits.init(fr.data, fr.dataPos, -1); // No end code, read all bits
+            for (int code = bits.read(); code >= 0; code = bits.read()) {
+                sum += code;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Decodes the palette indices of all frames, moving the rows of
+     * interlaced frames into place.
+     */
+    @Benchmark
+    public int lzwDecode() {
+        int count = 0;
+        for (final GifFrame fr : gif.frames) {
+            count += lzw.decode(fr, indices);
+        }
+        return count;
+    }
+
+    /**
+     * Draws the decoded palette indices of all frames onto the canvas,
+     * including disposal, but without copying the frames.
+     */
+    @Benchmark
+    public void drawFrame(final Blackhole bh) {
+        for (int i = 0; i < decoded.length; i++) {
+            bh.consume(gif.drawFrame(i, false, decoded[i], null));
+        }
+    }
+
+    /**
+     * Reads an image and returns copies of all frames.
+     */
+    @Benchmark
+    public void readAllFrames(final Blackhole bh) throws IOException {
+        final GifImage img = GifDecoder.read(data);
+        for (int i = 0; i < img.getFrameCount(); i++) {
+            bh.consume(img.getFrame(i));
+        }
+    }
+
+    /**
+     * Same as {@link #readAllFrames(Blackhole)}, using Kevin Weiner's decoder
+     * as the baseline.
+     */
+    @Benchmark
+    public void readAllFramesKevinWeiner(final Blackhole bh) {
+        final com.fmsware.GifDecoder decoder = new com.fmsware.GifDecoder();
+        decoder.read(new ByteArrayInputStream(data));
+        for (int i = 0; i < decoder.getFrameCount(); i++) {
+            final BufferedImage frame = decoder.getFrame(i);
+            bh.consume(frame);
+        }
+    }
+
+    private static byte[] load(final String name) throws IOException {
+        try (InputStream in = GifDecoderBenchmark.class.getResourceAsStream("/input-images/" + name + ".gif")) {
+            if (in == null) {
+                throw new IOException("Test image not found: " + name);
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -1,12 +1,34 @@
 package at.dhyan.open_imaging;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static java.lang.System.arraycopy;
 
@@ -58,39 +80,94 @@ import static java.lang.System.arraycopy;
  */
 public final class GifDecoder {
     static final class BitReader {
-        private int nextBitToRead;
         private int numberOfBitsToRead;
         private int bitMask; // Used to kill unwanted higher bits
-        private byte[] bytes; // Data array
+        private ByteBuffer in; // Input holding the image data sub-blocks, little-endian
+        private int fileSize; // Sub-blocks may exceed the input's end
+        private int pos; // Index of the next input byte to read
+        private int subBlockEnd; // Index after the current sub-block
+        private long buffer; // Bits read from the input, but not used yet
+        private int bufferedBits; // Number of bits in the buffer
+        private int endCode; // Returned for missing codes
 
-        // To avoid costly bounds checks, 'in' needs 2 more 0-bytes at the end
-        private void init(final byte[] bytes) {
-            this.bytes = bytes;
-            nextBitToRead = 0;
+        void init(final ByteBuffer in, final int pos, final int endCode) {
+            this.in = in;
+            this.endCode = endCode;
+            fileSize = in.limit();
+            this.pos = pos;
+            subBlockEnd = pos; // Next byte is the first sub-block size
+            buffer = 0;
+            bufferedBits = 0;
         }
 
-        private int read() {
-            // Byte indices: (bitPos / 8), (bitPos / 8) + 1, (bitPos / 8) + 2
-            int byteIndex = nextBitToRead >>> 3; // Byte = bit / 8
-            int bitsToShiftRight = nextBitToRead & 7; // & 7 is the same as MODULO 8
-            int byte0, byte1, byte2;
-            byte0 = bytes[byteIndex++] & 0xFF; // & 0xFF gives us the unsigned values
-            byte1 = bytes[byteIndex++] & 0xFF;
-            byte2 = bytes[byteIndex] & 0xFF;
-            // Glue the bytes together, don't do more shifting than necessary
-            int buffer = ((byte2 << 8 | byte1) << 8 | byte0) >>> bitsToShiftRight;
-            nextBitToRead += numberOfBitsToRead;
-            return buffer & bitMask; // Kill the unwanted higher bits
+        int read() {
+            if (bufferedBits < numberOfBitsToRead && !fill()) { // End of data
+                return bufferedBits > 0 ? readPadded() : endCode;
+            }
+            final int code = (int) buffer & bitMask; // Kill the unwanted higher bits
+            buffer >>>= numberOfBitsToRead;
+            bufferedBits -= numberOfBitsToRead;
+            return code;
+        }
+
+        /**
+         * Adds at least enough bits to the buffer to read the next code.
+         * Within a sub-block, 8 bytes are loaded at once and as many as fit
+         * are kept. Near the end of a sub-block, bytes are added one by one.
+         *
+         * @return False if the image data ends before
+         */
+        private boolean fill() {
+            if (subBlockEnd - pos >= 8) {
+                final long bytes = in.getLong(pos); // First byte in the lowest bits
+                final int n = (64 - bufferedBits) >>> 3; // Whole bytes that fit
+                buffer |= (bytes & -1L >>> 64 - (n << 3)) << bufferedBits;
+                bufferedBits += n << 3;
+                pos += n;
+                return true;
+            }
+            while (bufferedBits < numberOfBitsToRead) {
+                if (pos == subBlockEnd) { // Go to next sub-block
+                    final int subBlockSize = pos < fileSize ? in.get(pos) & 0xFF : 0;
+                    if (subBlockSize == 0) { // End of data, pad last code with 0-bits
+                        return false;
+                    }
+                    subBlockEnd = Math.min(++pos + subBlockSize, fileSize);
+                } else {
+                    buffer |= (in.get(pos++) & 0xFFL) << bufferedBits;
+                    bufferedBits += 8;
+                }
+            }
+            return true;
+        }
+
+        private int readPadded() {
+            final int code = (int) buffer & bitMask;
+            buffer = 0;
+            bufferedBits = 0;
+            return code;
+        }
+
+        /**
+         * @return Index after the last input byte the codes read so far were
+         * taken from, ignoring sub-block sizes among the bytes read ahead
+         */
+        int position() {
+            return pos - (bufferedBits >>> 3);
         }
 
-        private void setNumberOfBitsToRead(final int numberOfBitsToRead) {
+        void setNumberOfBitsToRead(final int numberOfBitsToRead) {
             this.numberOfBitsToRead = numberOfBitsToRead;
             bitMask = (1 << numberOfBitsToRead) - 1;
         }
     }
 
     static final class CodeTable {
-        private final int[][] table; // Maps codes to lists of colors
+        // Every string is stored as its prefix code plus one trailing index
+        private final short[] prefix; // Code of the string without its last index
+        private final byte[] suffix; // Last palette index of the string
+        private final byte[] first; // First palette index of the string
+        private final short[] length; // Number of indices in the string
         private int initTableSize; // Number of colors +2 for CLEAR + EOI
         private int initCodeSize; // Initial code size
         private int initCodeLimit; // First code limit
@@ -98,19 +175,35 @@ public final class GifDecoder {
         private int nextCode; // Next available code for a new entry
         private int nextCodeLimit; // Increase codeSize when nextCode == limit
         private BitReader bitReader; // Notify when code sizes increases
+        private int fullCount; // Number of times the table filled up
+        // Rows of interlaced frames are written to their final position
+        private int width; // Frame width
+        private int height; // Frame height
+        private int rowEnd; // Output index after the row being written, in stream order
+        private int rowOffset; // Final index - stream index in that row
 
         public CodeTable() {
-            table = new int[4096][1];
+            prefix = new short[4096];
+            suffix = new byte[4096];
+            first = new byte[4096];
+            length = new short[4096];
         }
 
-        private int add(final int[] indices) {
+        private int add(final int prevCode, final byte k) {
             if (nextCode < 4096) {
-                if (nextCode == nextCodeLimit && codeSize < 12) {
-                    codeSize++; // Max code size is 12
-                    bitReader.setNumberOfBitsToRead(codeSize);
-                    nextCodeLimit = (1 << codeSize) - 1; // 2^codeSize - 1
+                if (nextCode == nextCodeLimit) {
+                    if (codeSize < 12) {
+                        codeSize++; // Max code size is 12
+                        bitReader.setNumberOfBitsToRead(codeSize);
+                        nextCodeLimit = (1 << codeSize) - 1; // 2^codeSize - 1
+                    } else {
+                        fullCount++; // Adding the last entry
+                    }
                 }
-                table[nextCode++] = indices;
+                prefix[nextCode] = (short) prevCode;
+                suffix[nextCode] = k;
+                first[nextCode] = first[prevCode];
+                length[nextCode++] = (short) (length[prevCode] + 1);
             }
             return codeSize;
         }
@@ -123,22 +216,391 @@ public final class GifDecoder {
             return codeSize;
         }
 
-        private void init(final GifFrame fr, final int[] activeColTbl, final BitReader br) {
+        private void init(final GifFrame fr, final BitReader br) {
             this.bitReader = br;
-            final int numColors = activeColTbl.length;
             initCodeSize = fr.firstCodeSize;
             initCodeLimit = (1 << initCodeSize) - 1; // 2^initCodeSize - 1
             initTableSize = fr.endOfInfoCode + 1;
             nextCode = initTableSize;
-            for (int c = numColors - 1; c >= 0; c--) {
-                table[c][0] = activeColTbl[c]; // Translated color
-            } // A gap may follow with no colors assigned if numCols < CLEAR
-            table[fr.clearCode] = new int[]{fr.clearCode}; // CLEAR
-            table[fr.endOfInfoCode] = new int[]{fr.endOfInfoCode}; // EOI
-            // Locate transparent color in code table and set to 0
-            if (fr.transpColFlag && fr.transpColIndex < numColors) {
-                table[fr.transpColIndex][0] = 0;
+            fullCount = 0;
+            width = fr.w;
+            height = fr.h;
+            rowEnd = fr.interlaceFlag && fr.wh > 0 ? fr.w : Integer.MAX_VALUE; // Else rows stay in order
+            rowOffset = 0; // The first row is the first in either order
+            // Root codes map to themselves, CLEAR and EOI are never output
+            for (int c = fr.endOfInfoCode; c >= 0; c--) {
+                suffix[c] = (byte) c;
+                first[c] = (byte) c;
+                length[c] = 1;
+            }
+        }
+
+        /**
+         * Writes the indices of a code's string into the output array. The
+         * table only knows a string from back to front, so the last index is
+         * written first. Indices at or beyond outEnd are dropped. Indices of
+         * interlaced frames are moved to their final row.
+         *
+         * @param outPos Position of the string in stream order
+         * @return Position after the string in stream order
+         */
+        private int write(int code, final byte[] out, final int outPos, final int outEnd) {
+            final int end = outPos + length[code];
+            int pos = end - 1;
+            for (int skip = end - outEnd; skip > 0; skip--, pos--) {
+                code = prefix[code]; // Skip indices beyond the array end
+            }
+            if (pos >= rowEnd) { // String reaches into the next rows
+                return writeRows(code, out, outPos, pos, end);
+            }
+            final int offset = rowOffset;
+            for (; pos >= outPos; pos--) {
+                out[pos + offset] = suffix[code];
+                code = prefix[code];
+            }
+            return end;
+        }
+
+        /**
+         * Writes a string of an interlaced frame that ends in a later row
+         * than it starts, row by row from the last one.
+         *
+         * @param pos Stream position of the string's last index to write
+         */
+        private int writeRows(int code, final byte[] out, final int outPos, int pos, final int end) {
+            int row = pos / width; // Stream row of the last index
+            rowEnd = (row + 1) * width; // Continue in that row
+            rowOffset = (interlacedToFinal(row) - row) * width;
+            for (; pos >= outPos; row--) {
+                final int offset = (interlacedToFinal(row) - row) * width;
+                for (final int rowStart = Math.max(outPos, row * width); pos >= rowStart; pos--) {
+                    out[pos + offset] = suffix[code];
+                    code = prefix[code];
+                }
+            }
+            return end;
+        }
+
+        /**
+         * @param row A row of an interlaced frame, in stream order
+         * @return Position of the row as displayed
+         */
+        private int interlacedToFinal(int row) {
+            final int set1 = (height + 7) >>> 3; // Every 8th line starting from 0
+            if (row < set1) {
+                return row << 3;
+            }
+            row -= set1;
+            final int set2 = (height + 3) >>> 3; // Every 8th line starting from 4
+            if (row < set2) {
+                return (row << 3) + 4;
+            }
+            row -= set2;
+            final int set3 = (height + 1) >>> 2; // Every 4th line starting from 2
+            if (row < set3) {
+                return (row << 2) + 2;
+            }
+            return ((row - set3) << 1) + 1; // Every 2nd line starting from 1
+        }
+    }
+
+    /**
+     * Decides which drawn frames a {@link GifImage} keeps in memory. Frames
+     * that are not kept are drawn again when they are requested the next
+     * time, see {@link GifImage#setCachePolicy(CachePolicy)}.
+     */
+    public static final class CachePolicy {
+        /**
+         * Keeps every frame that has been drawn, including the frames drawn
+         * on the way to a requested frame. This is the default.
+         */
+        public static final CachePolicy UNBOUNDED = new CachePolicy(Integer.MAX_VALUE, Long.MAX_VALUE, false);
+        /**
+         * Keeps no frames at all. Sequential access is still cheap, as the
+         * working canvas always holds the most recently drawn frame.
+         */
+        public static final CachePolicy NONE = new CachePolicy(0, 0, false);
+        /**
+         * Keeps requested frames as long as the garbage collector doesn't
+         * need the memory.
+         */
+        public static final CachePolicy SOFT = new CachePolicy(Integer.MAX_VALUE, Long.MAX_VALUE, true);
+
+        private final int maxFrames;
+        private final long maxBytes;
+        private final boolean soft;
+
+        private CachePolicy(final int maxFrames, final long maxBytes, final boolean soft) {
+            this.maxFrames = maxFrames;
+            this.maxBytes = maxBytes;
+            this.soft = soft;
+        }
+
+        /**
+         * @param maxFrames Maximum number of requested frames to keep. The
+         *                  least recently used frames are dropped first.
+         * @return A policy limiting the number of frames
+         */
+        public static CachePolicy maxFrames(final int maxFrames) {
+            if (maxFrames < 0) {
+                throw new IllegalArgumentException("Negative frame limit: " + maxFrames);
+            }
+            return new CachePolicy(maxFrames, Long.MAX_VALUE, false);
+        }
+
+        /**
+         * @param maxBytes Maximum number of pixel bytes of requested frames to
+         *                 keep, 4 bytes per pixel, or 1 byte per pixel in
+         *                 indexed color mode. The least recently used
+         *                 frames are dropped first.
+         * @return A policy limiting the memory used by frames
+         */
+        public static CachePolicy maxBytes(final long maxBytes) {
+            if (maxBytes < 0) {
+                throw new IllegalArgumentException("Negative byte limit: " + maxBytes);
+            }
+            return new CachePolicy(Integer.MAX_VALUE, maxBytes, false);
+        }
+    }
+
+    /**
+     * Bounds the work and memory an image may cost, e.g. for images from
+     * untrusted sources, see {@link GifDecoder#setLimits(Limits)}. Size limits
+     * are checked while parsing, before anything is allocated for the image.
+     * Start from {@link #NONE} and add limits.
+     */
+    public static final class Limits {
+        /**
+         * No limits. This is the default.
+         */
+        public static final Limits NONE = new Limits(Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE,
+                Long.MAX_VALUE, 0);
+
+        private final long maxCanvasPixels;
+        private final int maxFrames;
+        private final long maxTotalPixels;
+        private final long maxCompressedBytes;
+        private final long timeoutNanos; // 0 = no timeout
+
+        private Limits(final long maxCanvasPixels, final int maxFrames, final long maxTotalPixels,
+                       final long maxCompressedBytes, final long timeoutNanos) {
+            this.maxCanvasPixels = maxCanvasPixels;
+            this.maxFrames = maxFrames;
+            this.maxTotalPixels = maxTotalPixels;
+            this.maxCompressedBytes = maxCompressedBytes;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        /**
+         * @param maxCanvasPixels Maximum width * height of the logical screen
+         *                        and of each frame
+         * @return These limits with the given canvas limit
+         */
+        public Limits withMaxCanvasPixels(final long maxCanvasPixels) {
+            if (maxCanvasPixels < 0) {
+                throw new IllegalArgumentException("Negative pixel limit: " + maxCanvasPixels);
+            }
+            return new Limits(maxCanvasPixels, maxFrames, maxTotalPixels, maxCompressedBytes, timeoutNanos);
+        }
+
+        /**
+         * @param maxFrames Maximum number of frames of an image
+         * @return These limits with the given frame limit
+         */
+        public Limits withMaxFrames(final int maxFrames) {
+            if (maxFrames < 0) {
+                throw new IllegalArgumentException("Negative frame limit: " + maxFrames);
+            }
+            return new Limits(maxCanvasPixels, maxFrames, maxTotalPixels, maxCompressedBytes, timeoutNanos);
+        }
+
+        /**
+         * @param maxTotalPixels Maximum sum of the frame sizes of an image,
+         *                       i.e. the number of pixels decoded to draw
+         *                       all frames once
+         * @return These limits with the given limit of decoded pixels
+         */
+        public Limits withMaxTotalPixels(final long maxTotalPixels) {
+            if (maxTotalPixels < 0) {
+                throw new IllegalArgumentException("Negative pixel limit: " + maxTotalPixels);
+            }
+            return new Limits(maxCanvasPixels, maxFrames, maxTotalPixels, maxCompressedBytes, timeoutNanos);
+        }
+
+        /**
+         * @param maxCompressedBytes Maximum size of the input
+         * @return These limits with the given input size limit
+         */
+        public Limits withMaxCompressedBytes(final long maxCompressedBytes) {
+            if (maxCompressedBytes < 0) {
+                throw new IllegalArgumentException("Negative byte limit: " + maxCompressedBytes);
+            }
+            return new Limits(maxCanvasPixels, maxFrames, maxTotalPixels, maxCompressedBytes, timeoutNanos);
+        }
+
+        /**
+         * @param timeout Maximum time to parse an image, and to draw the
+         *                frames needed for one request, e.g. one call of
+         *                {@link GifImage#getFrame(int)}. 0 for no timeout.
+         * @param unit    Unit of the timeout
+         * @return These limits with the given timeout
+         */
+        public Limits withTimeout(final long timeout, final TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("Negative timeout: " + timeout);
+            }
+            return new Limits(maxCanvasPixels, maxFrames, maxTotalPixels, maxCompressedBytes, unit.toNanos(timeout));
+        }
+    }
+
+    /**
+     * Lets parsing and drawing give up when the thread is interrupted or the
+     * timeout of the limits has passed. Only used if there are limits.
+     */
+    static final class Deadline {
+        private final long end; // System.nanoTime() to give up at
+        private final boolean timed;
+
+        private Deadline(final long timeoutNanos) {
+            end = System.nanoTime() + timeoutNanos;
+            timed = timeoutNanos > 0;
+        }
+
+        /**
+         * @return A deadline starting now, or null if there are no limits
+         */
+        static Deadline start(final Limits limits) {
+            return limits == Limits.NONE ? null : new Deadline(limits.timeoutNanos);
+        }
+
+        boolean expired() {
+            return Thread.currentThread().isInterrupted() || timed && System.nanoTime() - end > 0;
+        }
+
+        /**
+         * @throws CancellationException If the deadline has expired
+         */
+        void check() {
+            if (expired()) {
+                throw new CancellationException(Thread.currentThread().isInterrupted() ? "Interrupted"
+                        : "Timeout expired");
+            }
+        }
+    }
+
+    /**
+     * Decodes the image data of frames into palette indices. Each thread
+     * decoding frames at the same time needs its own instance, so every thread
+     * keeps one and reuses it for all images.
+     */
+    static final class LzwDecoder {
+        private static final ThreadLocal<LzwDecoder> LOCAL = ThreadLocal.withInitial(LzwDecoder::new);
+        private final BitReader bits = new BitReader();
+        private final CodeTable codes = new CodeTable();
+        private int codesRead; // Counters of the last decoded frame
+        private int clearCodes;
+
+        /**
+         * @return The decoder of the calling thread
+         */
+        static LzwDecoder get() {
+            return LOCAL.get();
+        }
+
+        /**
+         * Adds the counters of the last decoded frame to its metrics.
+         */
+        void count(final GifFrame fr, final FrameMetrics metrics) {
+            metrics.compressedBytes = bits.position() - fr.dataPos;
+            metrics.codesRead = codesRead;
+            metrics.clearCodes = clearCodes;
+            metrics.tableFullEvents = codes.fullCount;
+        }
+
+        /**
+         * @param fr  The frame to decode
+         * @param out Target array for the frame's palette indices, at least
+         *            as long as the frame has pixels. Rows of interlaced
+         *            frames are written in final order.
+         * @return Number of indices decoded in stream order, less than the
+         * frame size if the image data is truncated or corrupt
+         */
+        int decode(final GifFrame fr, final byte[] out) {
+            return decode(fr, out, null);
+        }
+
+        /**
+         * @param deadline Checked every few thousand codes, or null
+         * @throws CancellationException If the deadline has expired
+         * @see #decode(GifFrame, byte[])
+         */
+        int decode(final GifFrame fr, final byte[] out, final Deadline deadline) {
+            codes.init(fr, bits);
+            bits.init(fr.data, fr.dataPos, fr.endOfInfoCode); // Incoming codes
+            final int clearCode = fr.clearCode, endCode = fr.endOfInfoCode;
+            final int outEnd = fr.wh;
+            int outPos = 0; // Next pixel position in the output array
+            codes.clear(); // Init code table
+            int code = bits.read(); // Read first code, usually a CLEAR code
+            codesRead = 1;
+            clearCodes = 0;
+            while (code == clearCode) { // Encoders may repeat CLEAR codes
+                code = bits.read();
+                codesRead++;
+                clearCodes++;
+            }
+            if (code >= clearCode) {
+                return 0; // No valid first code, nothing to draw
+            }
+            int n = 0; // Codes read in the loop, kept in a register
+            outPos = codes.write(code, out, outPos, outEnd); // Output index for first code
+            while (outPos < outEnd) {
+                final int prevCode = code;
+                code = bits.read(); // Get next code in stream
+                if ((++n & 0xFFF) == 0 && deadline != null) {
+                    deadline.check();
+                }
+                if (code == clearCode) { // After a CLEAR table, there is
+                    codes.clear(); // no previous code, we need to read
+                    do { // a new one, skipping repeated CLEAR codes
+                        code = bits.read();
+                        n++;
+                        clearCodes++;
+                    } while (code == clearCode);
+                    if (code >= clearCode) {
+                        break; // Not a root code, the stream is corrupt
+                    }
+                    outPos = codes.write(code, out, outPos, outEnd);
+                    continue; // Back to the loop with a valid previous code
+                } else if (code == endCode) {
+                    break;
+                }
+                if (code < codes.nextCode) { // Code table contains code
+                    codes.add(prevCode, codes.first[code]); // Previous indices + K
+                } else if (code == codes.nextCode) { // Code is prev + K
+                    codes.add(prevCode, codes.first[prevCode]); // Adds the code itself
+                } else {
+                    break; // Code from the future, the stream is corrupt
+                }
+                outPos = codes.write(code, out, outPos, outEnd);
             }
+            codesRead += n;
+            return Math.min(outPos, outEnd);
+        }
+    }
+
+    /**
+     * Palette indices of a frame, with its pixel lines in final order.
+     */
+    static final class DecodedFrame {
+        private final byte[] indices;
+        private final int count; // Number of indices decoded from the stream
+        private final FrameMetrics metrics; // Null without a listener
+
+        private DecodedFrame(final byte[] indices, final int count, final FrameMetrics metrics) {
+            this.indices = indices;
+            this.count = count;
+            this.metrics = metrics;
         }
     }
 
@@ -154,7 +616,7 @@ public final class GifDecoder {
         private int y; // Position on the canvas from the top
         private int w; // May be smaller than the base image
         private int h; // May be smaller than the base image
-        private int wh; // width * height
+        int wh; // width * height
         private boolean hasLocColTbl; // Has local color table? 1 Bit
         private boolean interlaceFlag; // Is an interlace image? 1 Bit
         @SuppressWarnings("unused")
@@ -165,8 +627,14 @@ public final class GifDecoder {
         private int firstCodeSize; // LZW minimum code size + 1 for CLEAR & EOI
         private int clearCode;
         private int endOfInfoCode;
-        private byte[] data; // Holds LZW encoded data
-        private BufferedImage img; // Full drawn image, not just the frame area
+        ByteBuffer data; // Input that holds the LZW encoded data
+        int dataPos; // Index of the first image data sub-block in it
+        private boolean truncated; // True if decoding yielded too few pixels
+        private volatile int missingPixels = -1; // Pixels not in the image data, -1 until decoded
+        private volatile BufferedImage img; // Full drawn image, not just the frame area
+        private volatile SoftReference<BufferedImage> softImg; // Same, if cached softly
+        private volatile long lastUse; // Time stamp of the last request, for eviction
+        private Object checkpoint; // Canvas pixels before this frame was drawn (optional)
     }
 
     public final class GifImage {
@@ -181,303 +649,2846 @@ public final class GifDecoder {
         public int bgColIndex; // Background color index, 1 Byte
         public int pxAspectRatio; // Pixel aspect ratio, 1 Byte
         public int[] globalColTbl; // Global color table
-        private final List<GifFrame> frames = new ArrayList<GifFrame>(64);
+        final List<GifFrame> frames = new ArrayList<GifFrame>(64);
         public String appId = ""; // 8 Bytes at in[i+3], usually "NETSCAPE"
         public String appAuthCode = ""; // 3 Bytes at in[i+11], usually "2.0"
         public int repetitions = 0; // 0: infinite loop, N: number of loops
+        private long truncatedAt = -1; // Input offset where the data ended early, -1 if complete
+        private long corruptAt = -1; // Input offset of the first invalid block, -1 if none
+        private boolean trailer; // True if the GIF trailer has been read
+        private final Object lock = new Object(); // Guards the canvas and drawing
         private BufferedImage img = null; // Currently, drawn frame
-        private final BitReader bits = new BitReader();
-        private final CodeTable codes = new CodeTable();
-        private Graphics2D g;
+        private Executor executor; // Decodes frames concurrently if set
+        private final int[] colors = new int[256]; // Active colors by index
+        private Object prevPx; // Canvas area below the frame being drawn
+        private int nextFrame; // Next frame to draw onto the canvas, -1 if unknown
+        private int keyframe = -1; // Self-contained frame the canvas started from
+        private int checkpointInterval; // Save the canvas every N frames, 0 = off
+        private IndexColorModel indexedModel; // Non-null in indexed color mode
+        private int[] indexedPalette; // Colors shared by all frames in that mode
+        private int transpIndex; // Index of transparent pixels in that mode
+        private CachePolicy cachePolicy = CachePolicy.UNBOUNDED;
+        private int cachedFrames; // Number of frames with a strong image
+        private final AtomicLong uses = new AtomicLong(); // Source of time stamps
 
-        private int[] decode(final GifFrame fr, final int[] activeColTbl) {
-            codes.init(fr, activeColTbl, bits);
-            bits.init(fr.data); // Incoming codes
-            final int clearCode = fr.clearCode, endCode = fr.endOfInfoCode;
-            final int[] out = new int[wh]; // Target image pixel array
-            final int[][] tbl = codes.table; // Code table
-            int outPos = 0; // Next pixel position in the output image array
-            codes.clear(); // Init code table
-            bits.read(); // Skip leading clear code
-            int code = bits.read(); // Read first code
-            int[] pixels = tbl[code]; // Output pixel for first code
-            arraycopy(pixels, 0, out, outPos, pixels.length);
-            outPos += pixels.length;
-            try {
-                while (true) {
-                    final int prevCode = code;
-                    code = bits.read(); // Get next code in stream
-                    if (code == clearCode) { // After a CLEAR table, there is
-                        codes.clear(); // no previous code, we need to read
-                        code = bits.read(); // a new one
-                        pixels = tbl[code]; // Output pixels
-                        arraycopy(pixels, 0, out, outPos, pixels.length);
-                        outPos += pixels.length;
-                        continue; // Back to the loop with a valid previous code
-                    } else if (code == endCode) {
-                        break;
-                    }
-                    final int[] prevVals = tbl[prevCode];
-                    final int[] prevValsAndK = new int[prevVals.length + 1];
-                    arraycopy(prevVals, 0, prevValsAndK, 0, prevVals.length);
-                    if (code < codes.nextCode) { // Code table contains code
-                        pixels = tbl[code]; // Output pixels
-                        arraycopy(pixels, 0, out, outPos, pixels.length);
-                        outPos += pixels.length;
-                        prevValsAndK[prevVals.length] = tbl[code][0]; // K
-                    } else {
-                        prevValsAndK[prevVals.length] = prevVals[0]; // K
-                        arraycopy(prevValsAndK, 0, out, outPos, prevValsAndK.length);
-                        outPos += prevValsAndK.length;
-                    }
-                    codes.add(prevValsAndK); // Previous indices + K
-                }
-            } catch (final ArrayIndexOutOfBoundsException ignored) {
-            }
-            return out;
-        }
-
-        private int[] deinterlace(final int[] src, final GifFrame fr) {
-            final int w = fr.w, h = fr.h, wh = fr.wh;
-            final int[] dest = new int[src.length];
-            // Interlaced images are organized in 4 sets of pixel lines
-            final int set2Y = (h + 7) >>> 3; // Line no. = ceil(h/8.0)
-            final int set3Y = set2Y + ((h + 3) >>> 3); // ceil(h-4/8.0)
-            final int set4Y = set3Y + ((h + 1) >>> 2); // ceil(h-2/4.0)
-            // Sets' start indices in source array
-            final int set2 = w * set2Y, set3 = w * set3Y, set4 = w * set4Y;
-            // Line skips in destination array
-            final int w2 = w << 1, w4 = w2 << 1, w8 = w4 << 1;
-            // Group 1 contains every 8th line starting from 0
-            int from = 0, to = 0;
-            for (; from < set2; from += w, to += w8) {
-                arraycopy(src, from, dest, to, w);
-            } // Group 2 contains every 8th line starting from 4
-            for (to = w4; from < set3; from += w, to += w8) {
-                arraycopy(src, from, dest, to, w);
-            } // Group 3 contains every 4th line starting from 2
-            for (to = w2; from < set4; from += w, to += w4) {
-                arraycopy(src, from, dest, to, w);
-            } // Group 4 contains every 2nd line starting from 1 (biggest group)
-            for (to = w; from < wh; from += w, to += w2) {
-                arraycopy(src, from, dest, to, w);
-            }
-            return dest; // All pixel lines have now been rearranged
-        }
-
-        private void drawFrame(final GifFrame fr) {
-            // Determine the color table that will be active for this frame
+        private int[] activeColors(final GifFrame fr, final int[] colors) {
+            // Translate palette indices, unassigned and transparent ones are 0
             final int[] activeColTbl = fr.hasLocColTbl ? fr.localColTbl : globalColTbl;
-            // Get pixels from data stream
-            int[] pixels = decode(fr, activeColTbl);
-            if (fr.interlaceFlag) {
-                pixels = deinterlace(pixels, fr); // Rearrange pixel lines
-            }
-            // Create image of type 2=ARGB for frame area
-            final BufferedImage frame = new BufferedImage(fr.w, fr.h, 2);
-            arraycopy(pixels, 0, ((DataBufferInt) frame.getRaster().getDataBuffer()).getData(), 0, fr.wh);
-            // Draw frame area on top of working image
-            g.drawImage(frame, fr.x, fr.y, null);
-
-            // Visualize frame boundaries during testing
-            // if (DEBUG_MODE) {
-            // if (prev != null) {
-            // g.setColor(Color.RED); // Previous frame color
-            // g.drawRect(prev.x, prev.y, prev.w - 1, prev.h - 1);
-            // }
-            // g.setColor(Color.GREEN); // New frame color
-            // g.drawRect(fr.x, fr.y, fr.w - 1, fr.h - 1);
-            // }
-
-            // Keep a copy of the previous frame's pixels in case we need to restore the frame
-            int[] prevPx = new int[wh];
-            arraycopy(((DataBufferInt) img.getRaster().getDataBuffer()).getData(), 0, prevPx, 0, wh);
-
-            // Create another copy for the end user to not expose internal state
-            fr.img = new BufferedImage(w, h, 2); // 2 = ARGB
-            arraycopy(prevPx, 0, ((DataBufferInt) fr.img.getRaster().getDataBuffer()).getData(), 0, wh);
+            final int numColors = activeColTbl == null ? 0 : Math.min(activeColTbl.length, 256);
+            if (numColors > 0) {
+                arraycopy(activeColTbl, 0, colors, 0, numColors);
+            }
+            Arrays.fill(colors, numColors, 256, 0);
+            if (fr.transpColFlag) {
+                colors[fr.transpColIndex] = 0;
+            }
+            return colors;
+        }
 
-            // Handle disposal of current frame
-            if (fr.disposalMethod == 2) {
-                // Restore to background color (clear frame area only)
-                g.clearRect(fr.x, fr.y, fr.w, fr.h);
-            } else if (fr.disposalMethod == 3) {
-                // Restore previous frame
-                arraycopy(prevPx, 0, ((DataBufferInt) img.getRaster().getDataBuffer()).getData(), 0, wh);
+        /**
+         * @param row A row of an interlaced frame, as displayed
+         * @param h   Height of the frame
+         * @return Position of the row in the data stream
+         */
+        private int interlacedRow(final int row, final int h) {
+            if ((row & 7) == 0) { // Group 1, every 8th line starting from 0
+                return row >>> 3;
+            }
+            final int set2Y = (h + 7) >>> 3;
+            if ((row & 7) == 4) { // Group 2, every 8th line starting from 4
+                return set2Y + (row >>> 3);
+            }
+            final int set3Y = set2Y + ((h + 3) >>> 3);
+            if ((row & 3) == 2) { // Group 3, every 4th line starting from 2
+                return set3Y + (row >>> 2);
             }
+            final int set4Y = set3Y + ((h + 1) >>> 2);
+            return set4Y + (row >>> 1); // Group 4, every 2nd line starting from 1
         }
 
         /**
-         * Returns the background color of the first frame in this GIF image. If
-         * the frame has a local color table, the returned color will be from
-         * that table. If not, the color will be from the global color table.
-         * Returns 0 if there is neither a local nor a global color table.
+         * Draws the opaque pixels of a decoded frame onto the canvas. Pixels
+         * outside the logical screen and pixels missing from truncated image
+         * data are skipped.
          *
-         * @return 32 bit ARGB color in the form 0xAARRGGBB
+         * @param fr      The frame to draw
+         * @param indices Palette indices of the frame, rows in final order
+         * @param count   Number of indices decoded from the data stream
          */
-        public final int getBackgroundColor() {
-            final GifFrame frame = frames.get(0);
-            if (frame.hasLocColTbl) {
-                return frame.localColTbl[bgColIndex];
-            } else if (hasGlobColTbl) {
-                return globalColTbl[bgColIndex];
+        private void composite(final GifFrame fr, final byte[] indices, final int count) {
+            final int[] colors = activeColors(fr, this.colors);
+            final Object canvas = pixels(img);
+            final int frW = fr.w;
+            final int clipW = Math.min(frW, w - fr.x), clipH = Math.min(fr.h, h - fr.y);
+            for (int row = 0; row < clipH; row++) {
+                // Rows arrive in stream order, interlaced frames skip around
+                final int streamRow = fr.interlaceFlag ? interlacedRow(row, fr.h) : row;
+                final int decoded = Math.min(clipW, count - streamRow * frW);
+                int src = row * frW;
+                int dest = (fr.y + row) * w + fr.x;
+                final int end = src + decoded;
+                if (canvas instanceof byte[]) { // Indexed color mode
+                    final byte[] px = (byte[]) canvas;
+                    for (; src < end; src++, dest++) {
+                        if (colors[indices[src] & 0xFF] != 0) { // Opaque color
+                            px[dest] = indices[src];
+                        }
+                    }
+                } else {
+                    final int[] px = (int[]) canvas;
+                    for (; src < end; src++, dest++) {
+                        final int color = colors[indices[src] & 0xFF];
+                        if (color != 0) { // Transparent, keep the canvas pixel
+                            px[dest] = color;
+                        }
+                    }
+                }
             }
-            return 0;
         }
 
         /**
-         * If not 0, the delay specifies how many hundredths (1/100) of a second
-         * to wait before displaying the frame <i>after</i> the current frame.
+         * Fills the frame area with transparent pixels, as far as it lies
+         * within the logical screen.
+         */
+        private void clear(final GifFrame fr) {
+            final Object canvas = pixels(img);
+            final int clipW = Math.min(fr.w, w - fr.x), clipH = Math.min(fr.h, h - fr.y);
+            for (int row = 0, dest = fr.y * w + fr.x; row < clipH && clipW > 0; row++, dest += w) {
+                fill(canvas, dest, dest + clipW);
+            }
+        }
+
+        /**
+         * Copies the frame area of the canvas, as far as it lies within the
+         * logical screen, to or from the backup array.
          *
-         * @param index Index of the current frame, 0 to N-1
-         * @return Delay as number of hundredths (1/100) of a second
+         * @param fr      The frame whose area is copied
+         * @param save    True to save the area, false to restore it
+         * @param metrics Counts the bytes of an allocated backup, or null
          */
-        public final int getDelay(final int index) {
-            return frames.get(index).delay;
+        private void copyArea(final GifFrame fr, final boolean save, final FrameMetrics metrics) {
+            final Object canvas = pixels(img);
+            final int clipW = Math.min(fr.w, w - fr.x), clipH = Math.min(fr.h, h - fr.y);
+            if (clipW <= 0 || clipH <= 0) {
+                return;
+            }
+            if (save) {
+                prevPx = canvas instanceof byte[] ? acquireIndices(clipW * clipH, metrics)
+                        : acquirePixels(clipW * clipH, metrics);
+            }
+            for (int row = 0, src = fr.y * w + fr.x, dest = 0; row < clipH; row++, src += w, dest += clipW) {
+                if (save) {
+                    arraycopy(canvas, src, prevPx, dest, clipW);
+                } else {
+                    arraycopy(prevPx, dest, canvas, src, clipW);
+                }
+            }
+            if (!save) {
+                if (prevPx instanceof byte[]) {
+                    release((byte[]) prevPx);
+                } else {
+                    release((int[]) prevPx);
+                }
+                prevPx = null;
+            }
         }
 
         /**
-         * @param index Index of the frame to return as image, starting from 0.
-         *              For incremental calls such as [0, 1, 2, ...] the method's
-         *              run time is O(1) as only one frame is drawn per call. For
-         *              random access calls such as [7, 12, ...] the run time is
-         *              O(N+1) with N being the number of previous frames that
-         *              need to be drawn before N+1 can be drawn on top. Once a
-         *              frame has been drawn it is being cached and the run time
-         *              is more or less O(0) to retrieve it from the list.
-         * @return A BufferedImage for the specified frame.
+         * @return ARGB pixels of a region of the canvas, row by row
          */
-        public BufferedImage getFrame(final int index) {
-            if (img == null) { // Init
-                img = new BufferedImage(w, h, 2); // 2 = ARGB
-                g = img.createGraphics();
-                g.setBackground(new Color(0, true)); // Transparent color
+        private int[] copyRegion(final int x, final int y, final int regionW, final int regionH) {
+            final Object canvas = pixels(img);
+            final int[] region = new int[regionW * regionH];
+            int[] cmap = null; // Colors of palette indices in indexed color mode
+            if (canvas instanceof byte[]) {
+                cmap = new int[256];
+                indexedModel.getRGBs(cmap);
             }
-            GifFrame fr = frames.get(index);
-            if (fr.img == null) {
-                // Draw all frames until and including the requested frame
-                for (int i = 0; i <= index; i++) {
-                    fr = frames.get(i);
-                    if (fr.img == null) {
-                        drawFrame(fr);
+            for (int row = 0, src = y * w + x, dest = 0; row < regionH; row++, src += w, dest += regionW) {
+                if (cmap == null) {
+                    arraycopy(canvas, src, region, dest, regionW);
+                } else {
+                    final byte[] px = (byte[]) canvas;
+                    for (int i = 0; i < regionW; i++) {
+                        region[dest + i] = cmap[px[src + i] & 0xFF];
                     }
                 }
             }
-            return fr.img;
+            return region;
+        }
+
+        /**
+         * @return The pixel array of an image created by this GifImage, int[]
+         * for ARGB and byte[] for indexed color mode
+         */
+        private Object pixels(final BufferedImage image) {
+            final DataBuffer buffer = image.getRaster().getDataBuffer();
+            if (buffer instanceof DataBufferByte) {
+                return ((DataBufferByte) buffer).getData();
+            }
+            return ((DataBufferInt) buffer).getData();
+        }
+
+        /**
+         * Sets pixels of a canvas or checkpoint to transparent.
+         */
+        private void fill(final Object pixels, final int from, final int to) {
+            if (pixels instanceof byte[]) {
+                Arrays.fill((byte[]) pixels, from, to, (byte) transpIndex);
+            } else {
+                Arrays.fill((int[]) pixels, from, to, 0);
+            }
+        }
+
+        /**
+         * @return A new image of the full size, in the current color mode
+         */
+        private BufferedImage newImage() {
+            if (indexedModel == null) {
+                return new BufferedImage(w, h, 2); // 2 = ARGB
+            }
+            return new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, indexedModel);
+        }
+
+        /**
+         * Decodes a frame without touching the state of this image, so that
+         * frames can be decoded concurrently.
+         *
+         * @param index    Index of the frame to decode
+         * @param lzw      Decoder to use, exclusively
+         * @param deadline Deadline of the request, or null
+         * @return The frame's palette indices
+         * @throws CancellationException If the deadline has expired
+         */
+        DecodedFrame decodeFrame(final int index, final LzwDecoder lzw, final Deadline deadline) {
+            final GifFrame fr = frames.get(index);
+            if (fr.data == null) {
+                throw new IllegalStateException("No image data for frame " + index);
+            }
+            final FrameMetrics metrics = listener == null ? null : new FrameMetrics();
+            final Object event = TRACER == null ? null : TRACER.beginDecode();
+            final long start = metrics == null ? 0 : System.nanoTime();
+            final byte[] indices = acquireIndices(fr.wh, metrics);
+            final int count = lzw.decode(fr, indices, deadline); // Rows in final order
+            fr.missingPixels = fr.wh - count;
+            if (metrics != null) {
+                lzw.count(fr, metrics);
+                metrics.decodeNanos = System.nanoTime() - start;
+            }
+            if (event != null) {
+                TRACER.endDecode(event, index, fr.w, fr.h, lzw.bits.position() - fr.dataPos,
+                        fr.interlaceFlag);
+            }
+            return new DecodedFrame(indices, count, metrics);
+        }
+
+        /**
+         * @param index    Index of the frame to draw
+         * @param snapshot True to return a copy of the drawn frame
+         * @param decoded  The frame's palette indices
+         * @param delta    Receives the pixels of its region, or null
+         * @return Copy of the drawn frame, or null if no copy was requested
+         */
+        BufferedImage drawFrame(final int index, final boolean snapshot, final DecodedFrame decoded,
+                                final FrameDelta delta) {
+            final GifFrame fr = frames.get(index);
+            if (indexedModel != null && !fitsPalette(fr, indexedPalette, transpIndex)) {
+                throw new IllegalStateException("Frame " + index + " doesn't fit the indexed color model");
+            }
+            final FrameMetrics metrics = decoded.metrics;
+            final Object event = TRACER == null ? null : TRACER.beginDraw();
+            final long start = metrics == null ? 0 : System.nanoTime();
+            final Object canvas = pixels(img);
+            // Keep a copy of the whole canvas to start later replays from here
+            if (checkpointInterval > 0 && index % checkpointInterval == 0 && fr.checkpoint == null
+                    && !isKeyframe(fr)) {
+                fr.checkpoint = canvas instanceof byte[] ? ((byte[]) canvas).clone() : ((int[]) canvas).clone();
+                if (metrics != null) {
+                    metrics.allocatedBytes += canvas instanceof byte[] ? wh : 4L * wh;
+                }
+            }
+            // Keep a copy of the pixels below the frame if they must be restored
+            if (fr.disposalMethod == 3) {
+                copyArea(fr, true, metrics);
+            }
+
+            // Draw frame area on top of working image
+            fr.truncated = decoded.count < fr.wh;
+            composite(fr, decoded.indices, decoded.count);
+            if (delta != null) {
+                delta.pixels = delta.w > 0 ? copyRegion(delta.x, delta.y, delta.w, delta.h) : new int[0];
+            }
+
+            // Create a copy for the end user to not expose internal state
+            BufferedImage frame = null;
+            if (snapshot && (frame = getCached(fr)) == null) {
+                frame = newImage();
+                arraycopy(canvas, 0, pixels(frame), 0, wh);
+                cache(fr, frame);
+                if (metrics != null) {
+                    metrics.allocatedBytes += canvas instanceof byte[] ? wh : 4L * wh;
+                }
+            }
+
+            // Handle disposal of current frame
+            if (fr.disposalMethod == 2) {
+                // Restore to background color (clear frame area only)
+                clear(fr);
+            } else if (fr.disposalMethod == 3) {
+                // Restore previous frame (frame area only)
+                copyArea(fr, false, null);
+            }
+            nextFrame = index + 1;
+            if (event != null) {
+                TRACER.endDraw(event, index, fr.x, fr.y, fr.w, fr.h, fr.disposalMethod, fr.interlaceFlag);
+            }
+            if (metrics != null) {
+                metrics.frameIndex = index;
+                metrics.compositeNanos = System.nanoTime() - start;
+                final DecodeListener listener = GifDecoder.this.listener;
+                if (listener != null) { // Might have been removed meanwhile
+                    listener.frameDrawn(this, metrics);
+                }
+            }
+            return frame;
+        }
+
+        private BufferedImage getCached(final GifFrame fr) {
+            final BufferedImage frame = fr.img;
+            if (frame != null) {
+                return frame;
+            }
+            final SoftReference<BufferedImage> softImg = fr.softImg;
+            return softImg == null ? null : softImg.get();
+        }
+
+        private void uncache(final GifFrame fr) {
+            if (fr.img != null) {
+                fr.img = null;
+                cachedFrames--;
+            }
+            fr.softImg = null;
+        }
+
+        /**
+         * Stores a drawn frame according to the cache policy and drops the
+         * least recently used frames that exceed its limits.
+         */
+        private void cache(final GifFrame fr, final BufferedImage frame) {
+            if (cachePolicy.soft) {
+                fr.softImg = new SoftReference<BufferedImage>(frame);
+                return;
+            }
+            fr.img = frame;
+            cachedFrames++;
+            final long frameBytes = (indexedModel == null ? 4L : 1L) * wh;
+            while (cachedFrames > cachePolicy.maxFrames || cachedFrames * frameBytes > cachePolicy.maxBytes) {
+                GifFrame lru = null;
+                for (final GifFrame f : frames) {
+                    if (f.img != null && (lru == null || f.lastUse < lru.lastUse)) {
+                        lru = f;
+                    }
+                }
+                uncache(lru);
+            }
+        }
+
+        /**
+         * A keyframe covers the whole logical screen with opaque pixels and
+         * doesn't restore the previous canvas afterwards. Drawing can start at
+         * a keyframe without knowing any of the frames before it.
+         */
+        private boolean isKeyframe(final GifFrame fr) {
+            final int[] activeColTbl = fr.hasLocColTbl ? fr.localColTbl : globalColTbl;
+            return fr.x == 0 && fr.y == 0 && fr.w >= w && fr.h >= h && !fr.transpColFlag && !fr.truncated
+                    && fr.disposalMethod != 3 && activeColTbl != null && activeColTbl.length >= fr.clearCode;
+        }
+
+        /**
+         * Prepares the canvas for drawing the given frame. The drawing starts
+         * at the closest frame before it that is either the next frame on the
+         * current canvas, a keyframe or a frame with a checkpoint.
+         *
+         * @param index Index of the frame that will be drawn
+         * @return Index of the first frame to draw
+         */
+        private int seek(final int index) {
+            final Object canvas = pixels(img);
+            keyframe = -1;
+            for (int i = index; i > 0; i--) {
+                if (i == nextFrame) {
+                    return i; // Continue with the current canvas
+                }
+                final GifFrame fr = frames.get(i);
+                if (fr.checkpoint != null) {
+                    arraycopy(fr.checkpoint, 0, canvas, 0, wh);
+                    return i;
+                } else if (isKeyframe(fr)) {
+                    fill(canvas, 0, wh);
+                    keyframe = i;
+                    return i;
+                }
+            }
+            if (nextFrame != 0) {
+                fill(canvas, 0, wh); // Start over with an empty canvas
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the background color of the first frame in this GIF image. If
+         * the frame has a local color table, the returned color will be from
+         * that table. If not, the color will be from the global color table.
+         * Returns 0 if there is neither a local nor a global color table.
+         *
+         * @return 32 bit ARGB color in the form 0xAARRGGBB
+         */
+        public final int getBackgroundColor() {
+            final GifFrame frame = frames.get(0);
+            if (frame.hasLocColTbl) {
+                return frame.localColTbl[bgColIndex];
+            } else if (hasGlobColTbl) {
+                return globalColTbl[bgColIndex];
+            }
+            return 0;
+        }
+
+        /**
+         * If not 0, the delay specifies how many hundredths (1/100) of a second
+         * to wait before displaying the frame <i>after</i> the current frame.
+         *
+         * @param index Index of the current frame, 0 to N-1
+         * @return Delay as number of hundredths (1/100) of a second
+         */
+        public final int getDelay(final int index) {
+            return frames.get(index).delay;
+        }
+
+        /**
+         * @param index Index of the frame to return as image, starting from 0.
+         *              For incremental calls such as [0, 1, 2, ...] the method's
+         *              run time is O(1) as only one frame is drawn per call. For
+         *              random access calls such as [7, 12, ...] the run time is
+         *              O(N+1) with N being the number of previous frames that
+         *              need to be drawn before N+1 can be drawn on top. Once a
+         *              frame has been drawn it is being cached and the run time
+         *              is more or less O(0) to retrieve it from the list.
+         *              Drawing starts at the closest previous keyframe, i.e. a
+         *              frame that covers the whole image with opaque pixels, or
+         *              checkpoint, see {@link #setCheckpointInterval(int)}.
+         *              This method can be called by several threads at once.
+         *              Cached frames are returned without locking, other frames
+         *              are drawn by one thread at a time, and threads waiting
+         *              for the same frame get the copy drawn first.
+         * @return A BufferedImage for the specified frame.
+         */
+        public BufferedImage getFrame(final int index) {
+            final GifFrame fr = frames.get(index);
+            fr.lastUse = uses.incrementAndGet();
+            final BufferedImage cached = getCached(fr);
+            if (cached != null) {
+                return cached;
+            }
+            synchronized (lock) {
+                final BufferedImage frame = getCached(fr); // Drawn while waiting?
+                return frame != null ? frame : draw(index, null);
+            }
+        }
+
+        /**
+         * Returns the part of the canvas that changed from the previous frame
+         * to the given frame, instead of a full copy of the frame. Applying
+         * the deltas of frames 0 to N-1 to an empty canvas in this order
+         * reproduces each frame. The frame is always drawn, so sequential
+         * calls are fastest, like for {@link #getFrame(int)}. Neither the
+         * frame nor the frames drawn on the way are copied or cached.
+         *
+         * @param index Index of the frame, 0 to N-1. For frame 0, the delta
+         *              covers the whole canvas.
+         * @return The changed region and its pixels
+         */
+        public FrameDelta getDelta(final int index) {
+            final GifFrame fr = frames.get(index);
+            fr.lastUse = uses.incrementAndGet();
+            int x0 = 0, y0 = 0, x1 = w, y1 = h; // Changed region
+            int disposal = 0;
+            if (index > 0) {
+                final GifFrame prev = frames.get(index - 1);
+                disposal = prev.disposalMethod;
+                x0 = fr.x;
+                y0 = fr.y;
+                x1 = fr.x + fr.w;
+                y1 = fr.y + fr.h;
+                if (disposal == 2 || disposal == 3) { // Previous frame area changes too
+                    x0 = Math.min(x0, prev.x);
+                    y0 = Math.min(y0, prev.y);
+                    x1 = Math.max(x1, prev.x + prev.w);
+                    y1 = Math.max(y1, prev.y + prev.h);
+                }
+            }
+            // Frames may lie partly or entirely outside the canvas
+            x0 = Math.min(x0, w);
+            y0 = Math.min(y0, h);
+            x1 = Math.max(x0, Math.min(x1, w));
+            y1 = Math.max(y0, Math.min(y1, h));
+            final FrameDelta delta = x1 > x0 && y1 > y0 ? new FrameDelta(x0, y0, x1 - x0, y1 - y0, disposal)
+                    : new FrameDelta(x0, y0, 0, 0, disposal);
+            synchronized (lock) {
+                draw(index, delta);
+            }
+            return delta;
+        }
+
+        /**
+         * Draws all frames from the closest starting point until and including
+         * the requested frame.
+         *
+         * @param delta Receives the changed region of the requested frame, or
+         *              null to return a copy of the whole frame
+         * @return Copy of the requested frame, or null if there is a delta
+         * @throws CancellationException If the limits' timeout expired or the
+         *                               thread was interrupted
+         */
+        private BufferedImage draw(final int index, final FrameDelta delta) {
+            final Deadline deadline = Deadline.start(limits);
+            if (img == null) { // Init
+                img = newImage();
+                fill(pixels(img), 0, wh);
+            }
+            BufferedImage frame;
+            try {
+                do {
+                    frame = executor == null ? drawFrames(seek(index), index, delta, deadline)
+                            : drawFramesConcurrently(seek(index), index, delta, deadline);
+                } while (nextFrame < 0); // A keyframe turned out to be truncated
+            } catch (final RuntimeException e) {
+                nextFrame = -1; // The canvas may have been reset, start over next time
+                throw e;
+            }
+            return frame;
+        }
+
+        /**
+         * Draws the first frame onto a new canvas and hands out the canvas
+         * itself. Nothing is backed up, cached or disposed, so the image must
+         * not be used to draw frames afterwards.
+         *
+         * @return The first frame, or null if there are no frames
+         */
+        private BufferedImage drawFirstFrame() {
+            if (frames.isEmpty()) {
+                return null;
+            }
+            final GifFrame fr = frames.get(0);
+            final DecodedFrame decoded = decodeFrame(0, LzwDecoder.get(), Deadline.start(limits));
+            final FrameMetrics metrics = decoded.metrics;
+            final Object event = TRACER == null ? null : TRACER.beginDraw();
+            final long start = metrics == null ? 0 : System.nanoTime();
+            final BufferedImage frame = newImage(); // Transparent
+            img = frame;
+            composite(fr, decoded.indices, decoded.count);
+            release(decoded.indices);
+            img = null;
+            if (event != null) {
+                TRACER.endDraw(event, 0, fr.x, fr.y, fr.w, fr.h, fr.disposalMethod, fr.interlaceFlag);
+            }
+            if (metrics != null) {
+                metrics.compositeNanos = System.nanoTime() - start;
+                metrics.allocatedBytes += pixels(frame) instanceof byte[] ? wh : 4L * wh;
+                final DecodeListener listener = GifDecoder.this.listener;
+                if (listener != null) {
+                    listener.frameDrawn(this, metrics);
+                }
+            }
+            return frame;
+        }
+
+        /**
+         * Draws frames one after another on the caller's thread.
+         *
+         * @return The last frame, or null if drawing must start over
+         */
+        private BufferedImage drawFrames(final int start, final int index, final FrameDelta delta,
+                                         final Deadline deadline) {
+            // A delta needs no full copies, not even of the frames on the way
+            final boolean keepAll = cachePolicy == CachePolicy.UNBOUNDED && delta == null;
+            BufferedImage frame = null;
+            for (int i = start; i <= index; i++) {
+                if (deadline != null) {
+                    deadline.check();
+                }
+                final DecodedFrame decoded = decodeFrame(i, LzwDecoder.get(), deadline);
+                frame = drawFrame(i, keepAll || i == index && delta == null, decoded, i == index ? delta : null);
+                release(decoded.indices);
+                if (restart(i)) {
+                    return null;
+                }
+            }
+            return frame;
+        }
+
+        /**
+         * Checks whether drawing started at a keyframe that turned out to be
+         * truncated, which means it depends on the frames before it.
+         *
+         * @return True if drawing must start over
+         */
+        private boolean restart(final int index) {
+            final GifFrame fr = frames.get(index);
+            if (index == keyframe && fr.truncated) {
+                uncache(fr); // Drawn on an empty canvas, which is wrong
+                nextFrame = -1; // Not a keyframe after all, start over
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Decodes frames concurrently using the executor, but draws them one
+         * after another on the caller's thread. Frames are decoded at most a
+         * few frames ahead of the frame that is drawn.
+         *
+         * @return The last frame, or null if drawing must start over
+         */
+        private BufferedImage drawFramesConcurrently(final int start, final int index, final FrameDelta delta,
+                                                     final Deadline deadline) {
+            final boolean keepAll = cachePolicy == CachePolicy.UNBOUNDED && delta == null;
+            final int window = 2 * Runtime.getRuntime().availableProcessors();
+            final ArrayDeque<ForkJoinTask<DecodedFrame>> pending = new ArrayDeque<ForkJoinTask<DecodedFrame>>();
+            int next = start; // Next frame to decode
+            BufferedImage frame = null;
+            try {
+                for (int i = start; i <= index; i++) {
+                    for (; next <= index && next < i + window; next++) {
+                        final int n = next;
+                        final ForkJoinTask<DecodedFrame> task = ForkJoinTask.adapt(
+                                () -> decodeFrame(n, LzwDecoder.get(), deadline));
+                        if (executor == ForkJoinTask.getPool()) {
+                            task.fork(); // Idle workers steal it, join() helps
+                        } else {
+                            executor.execute(task::invoke);
+                        }
+                        pending.add(task);
+                    }
+                    if (deadline != null) {
+                        deadline.check();
+                    }
+                    final DecodedFrame decoded = pending.remove().join();
+                    frame = drawFrame(i, keepAll || i == index && delta == null, decoded, i == index ? delta : null);
+                    release(decoded.indices);
+                    if (restart(i)) {
+                        return null;
+                    }
+                }
+            } finally {
+                for (final ForkJoinTask<DecodedFrame> task : pending) {
+                    task.cancel(false);
+                }
+            }
+            return frame;
+        }
+
+        /**
+         * Lets frames be decoded concurrently. When frames are drawn by
+         * {@link #getFrame(int)}, the image data of the frames to draw is
+         * decoded by the executor while the frames are drawn one after
+         * another on the caller's thread.
+         *
+         * @param executor Executor to decode frames with, e.g. a ForkJoinPool,
+         *                 or null to decode frames on the caller's thread,
+         *                 which is the default
+         */
+        public void setDecodeExecutor(final Executor executor) {
+            synchronized (lock) {
+                this.executor = executor;
+            }
+        }
+
+        /**
+         * Sets the policy deciding which drawn frames are kept in memory.
+         * Frames that are not kept anymore are drawn again on request, which
+         * benefits from keyframes and checkpoints, see
+         * {@link #setCheckpointInterval(int)}.
+         *
+         * @param policy The new cache policy, frames kept so far are dropped
+         *               as needed to follow it
+         */
+        public void setCachePolicy(final CachePolicy policy) {
+            if (policy == null) {
+                throw new NullPointerException("policy");
+            }
+            synchronized (lock) {
+                // Re-add the cached frames in the order of their last use
+                final List<GifFrame> cached = new ArrayList<GifFrame>();
+                for (final GifFrame f : frames) {
+                    if (getCached(f) != null) {
+                        cached.add(f);
+                    }
+                }
+                cached.sort((a, b) -> Long.compare(a.lastUse, b.lastUse));
+                cachePolicy = policy;
+                for (final GifFrame f : cached) {
+                    final BufferedImage frame = getCached(f);
+                    uncache(f);
+                    if (frame != null) {
+                        cache(f, frame);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Enables checkpoints for random access. While drawing, a copy of the
+         * whole canvas is kept every N frames, so that {@link #getFrame(int)}
+         * has to draw at most N frames for any index. Each checkpoint takes
+         * 4 bytes per pixel of the image, or 1 byte per pixel in indexed color
+         * mode. Already saved checkpoints are kept.
+         *
+         * @param interval Number of frames between checkpoints, 0 disables them
+         */
+        public void setCheckpointInterval(final int interval) {
+            if (interval < 0) {
+                throw new IllegalArgumentException("Negative checkpoint interval: " + interval);
+            }
+            synchronized (lock) {
+                checkpointInterval = interval;
+            }
+        }
+
+        /**
+         * @return True if all frames share one palette, so that they can be
+         * returned as indexed color images, see
+         * {@link #setIndexedColor(boolean)}
+         */
+        public boolean canUseIndexedColor() {
+            return indexedPalette() != null;
+        }
+
+        /**
+         * Switches between 32 bit ARGB frames, which is the default, and 8 bit
+         * frames of type TYPE_BYTE_INDEXED with an IndexColorModel of the
+         * GIF's palette. In indexed color mode, frames are drawn as palette
+         * indices and take a quarter of the memory. All frames drawn so far,
+         * including checkpoints, are dropped.
+         *
+         * @param indexed True for indexed color mode, false for ARGB
+         * @throws IllegalStateException If the frames don't share one palette
+         *                               with an index left for transparent
+         *                               pixels, see {@link #canUseIndexedColor()}
+         */
+        public void setIndexedColor(final boolean indexed) {
+            synchronized (lock) {
+                final int[] palette = indexed ? indexedPalette() : null;
+                if (indexed && palette == null) {
+                    throw new IllegalStateException("Frames don't share one palette");
+                }
+                indexedModel = null;
+                indexedPalette = palette;
+                if (palette != null) {
+                    transpIndex = transparentIndex(palette);
+                    final int[] cmap = Arrays.copyOf(palette, Math.max(palette.length, transpIndex + 1));
+                    cmap[transpIndex] = 0; // Same as transparent ARGB pixels
+                    indexedModel = new IndexColorModel(8, cmap.length, cmap, 0, true, transpIndex, DataBuffer.TYPE_BYTE);
+                }
+                for (final GifFrame fr : frames) {
+                    uncache(fr);
+                    fr.checkpoint = null;
+                }
+                img = null; // Start over with a new canvas
+                nextFrame = 0;
+            }
+        }
+
+        /**
+         * @return The palette of all frames, or null if the frames use
+         * different palettes or there is no index left for transparent pixels
+         */
+        private int[] indexedPalette() {
+            int[] palette = null;
+            for (final GifFrame fr : frames) {
+                palette = fr.hasLocColTbl ? fr.localColTbl : globalColTbl;
+                if (palette != null) {
+                    break;
+                }
+            }
+            if (palette == null) {
+                return null;
+            }
+            final int transparent = transparentIndex(palette);
+            for (final GifFrame fr : frames) {
+                if (!fitsPalette(fr, palette, transparent)) {
+                    return null;
+                }
+            }
+            return palette;
+        }
+
+        /**
+         * @return The first index after the palette, or for full palettes the
+         * index that the first frame treats as transparent
+         */
+        private int transparentIndex(final int[] palette) {
+            return palette.length < 256 ? palette.length : frames.get(0).transpColIndex;
+        }
+
+        /**
+         * @return True if the frame is drawn with the given palette and never
+         * draws the given transparent index as a color
+         */
+        private boolean fitsPalette(final GifFrame fr, final int[] palette, final int transparent) {
+            final int[] activeColTbl = fr.hasLocColTbl ? fr.localColTbl : globalColTbl;
+            if (activeColTbl == null) {
+                return true; // Draws nothing
+            }
+            return (activeColTbl == palette || Arrays.equals(activeColTbl, palette))
+                    && (transparent >= palette.length || fr.transpColFlag && fr.transpColIndex == transparent);
+        }
+
+        /**
+         * @return The number of frames contained in this GIF image
+         */
+        public final int getFrameCount() {
+            return frames.size();
+        }
+
+        /**
+         * @return The height of the GIF image
+         */
+        public final int getHeight() {
+            return h;
+        }
+
+        /**
+         * @return The width of the GIF image
+         */
+        public final int getWidth() {
+            return w;
+        }
+
+        /**
+         * Reports whether the image data was complete. Frames that haven't
+         * been drawn yet are decoded to count their missing pixels.
+         *
+         * @return Where the image was truncated or corrupt, and how many
+         * pixels each frame is missing
+         */
+        public Diagnostics getDiagnostics() {
+            synchronized (lock) {
+                final int[] missing = new int[frames.size()];
+                for (int i = 0; i < missing.length; i++) {
+                    final GifFrame fr = frames.get(i);
+                    if (fr.missingPixels < 0 && fr.data != null) {
+                        release(decodeFrame(i, LzwDecoder.get(), null).indices);
+                    }
+                    missing[i] = fr.missingPixels;
+                }
+                return new Diagnostics(truncatedAt, corruptAt, trailer, missing);
+            }
+        }
+
+        /**
+         * @param maxWidth  Maximum width of the scaled frames
+         * @param maxHeight Maximum height of the scaled frames
+         * @return The smallest scale factor that fits the image into the given
+         * size, for {@link #getScaledFrames(int...)}
+         */
+        public int getScaleFactor(final int maxWidth, final int maxHeight) {
+            if (maxWidth <= 0 || maxHeight <= 0) {
+                throw new IllegalArgumentException("Invalid size: " + maxWidth + "x" + maxHeight);
+            }
+            final int fx = (w + maxWidth - 1) / maxWidth, fy = (h + maxHeight - 1) / maxHeight;
+            return Math.max(1, Math.max(fx, fy));
+        }
+
+        /**
+         * Creates a view of this image that draws frames onto reduced canvases
+         * instead of a full size one, e.g. for thumbnails. Each scaled pixel
+         * is the average of a block of factor x factor pixels, and all sizes
+         * are drawn in the same pass over the image data.
+         *
+         * @param factors Scale factors, 1 for the full size, 2 for half the
+         *                width and height etc.
+         * @return A view drawing frames in the given sizes
+         */
+        public ScaledFrames getScaledFrames(final int... factors) {
+            if (factors.length == 0) {
+                throw new IllegalArgumentException("No scale factor");
+            }
+            for (final int factor : factors) {
+                if (factor < 1) {
+                    throw new IllegalArgumentException("Invalid scale factor: " + factor);
+                }
+            }
+            return new ScaledFrames(factors.clone());
+        }
+
+        /**
+         * Draws the frames of a GifImage onto reduced canvases. Transparent
+         * and partially covered blocks are blended by the share of pixels
+         * that cover them, so the result approximates scaling the full size
+         * frames. Drawing needs memory for the reduced canvases and for the
+         * palette indices of one frame, but not for full size canvases. A
+         * ScaledFrames object must not be used by several threads at once.
+         */
+        public final class ScaledFrames {
+            private final int[] factors;
+            private final int[][] canvases; // Premultiplied ARGB per size
+            private final int[][] backups; // Blocks below a frame to restore
+            private final long[][] sums; // Per size: count, red, green, blue per block
+            private final int[] colors = new int[256]; // Active colors by index
+            private final int[] rowColors = new int[w]; // ARGB of one frame row
+            private int next; // Next frame to draw onto the canvases
+
+            private ScaledFrames(final int[] factors) {
+                this.factors = factors;
+                canvases = new int[factors.length][];
+                backups = new int[factors.length][];
+                sums = new long[factors.length][];
+                for (int s = 0; s < factors.length; s++) {
+                    canvases[s] = new int[getWidth(s) * getHeight(s)];
+                    sums[s] = new long[4 * getWidth(s)];
+                }
+            }
+
+            /**
+             * @param size Index of the size, in the order of the scale factors
+             * @return Width of the scaled frames of that size
+             */
+            public int getWidth(final int size) {
+                return (w + factors[size] - 1) / factors[size];
+            }
+
+            /**
+             * @param size Index of the size, in the order of the scale factors
+             * @return Height of the scaled frames of that size
+             */
+            public int getHeight(final int size) {
+                return (h + factors[size] - 1) / factors[size];
+            }
+
+            /**
+             * @param index Index of the frame, 0 to N-1. Frames are drawn one
+             *              after another, so sequential access is fastest.
+             * @return One image of type ARGB_PRE per size, in the order of the
+             * scale factors
+             */
+            public BufferedImage[] getFrame(final int index) {
+                if (index < 0 || index >= frames.size()) {
+                    throw new IndexOutOfBoundsException("Frame " + index + " of " + frames.size());
+                }
+                if (index < next) { // Start over with empty canvases
+                    for (final int[] canvas : canvases) {
+                        Arrays.fill(canvas, 0);
+                    }
+                    next = 0;
+                }
+                final Deadline deadline = Deadline.start(limits);
+                BufferedImage[] images = null;
+                for (; next <= index; next++) {
+                    if (deadline != null) {
+                        deadline.check();
+                    }
+                    images = drawFrame(next, next == index, deadline);
+                }
+                return images;
+            }
+
+            private BufferedImage[] drawFrame(final int index, final boolean snapshot, final Deadline deadline) {
+                final GifFrame fr = frames.get(index);
+                final DecodedFrame decoded = decodeFrame(index, LzwDecoder.get(), deadline);
+                final FrameMetrics metrics = decoded.metrics;
+                final Object event = TRACER == null ? null : TRACER.beginDraw();
+                final long start = metrics == null ? 0 : System.nanoTime();
+                if (fr.disposalMethod == 3) {
+                    for (int s = 0; s < factors.length; s++) {
+                        copyBlocks(fr, s, true);
+                    }
+                }
+                blend(fr, decoded);
+                release(decoded.indices);
+                BufferedImage[] images = null;
+                if (snapshot) {
+                    images = new BufferedImage[factors.length];
+                    for (int s = 0; s < factors.length; s++) {
+                        images[s] = new BufferedImage(getWidth(s), getHeight(s), 3); // 3 = ARGB_PRE
+                        final int[] px = ((DataBufferInt) images[s].getRaster().getDataBuffer()).getData();
+                        arraycopy(canvases[s], 0, px, 0, px.length);
+                        if (metrics != null) {
+                            metrics.allocatedBytes += 4L * px.length;
+                        }
+                    }
+                }
+                for (int s = 0; s < factors.length; s++) {
+                    if (fr.disposalMethod == 2) {
+                        clearBlocks(fr, s);
+                    } else if (fr.disposalMethod == 3) {
+                        copyBlocks(fr, s, false);
+                    }
+                }
+                if (event != null) {
+                    TRACER.endDraw(event, index, fr.x, fr.y, fr.w, fr.h, fr.disposalMethod, fr.interlaceFlag);
+                }
+                if (metrics != null) {
+                    metrics.frameIndex = index;
+                    metrics.compositeNanos = System.nanoTime() - start;
+                    final DecodeListener listener = GifDecoder.this.listener;
+                    if (listener != null) {
+                        listener.frameDrawn(GifImage.this, metrics);
+                    }
+                }
+                return images;
+            }
+
+            /**
+             * Adds the opaque pixels of a frame to the canvases, row by row.
+             * Once all rows of a line of blocks have been summed up, each block
+             * is replaced by the share of the frame's pixels that cover it.
+             */
+            private void blend(final GifFrame fr, final DecodedFrame decoded) {
+                activeColors(fr, colors);
+                final int clipW = Math.min(fr.w, w - fr.x), clipH = Math.min(fr.h, h - fr.y);
+                for (int row = 0; row < clipH && clipW > 0; row++) {
+                    // Rows arrive in stream order, interlaced frames skip around
+                    final int streamRow = fr.interlaceFlag ? interlacedRow(row, fr.h) : row;
+                    final int count = Math.max(0, Math.min(clipW, decoded.count - streamRow * fr.w));
+                    for (int i = 0, src = row * fr.w; i < count; i++, src++) {
+                        rowColors[i] = colors[decoded.indices[src] & 0xFF];
+                    }
+                    final int y = fr.y + row;
+                    for (int s = 0; s < factors.length; s++) {
+                        final int f = factors[s];
+                        final long[] sum = sums[s];
+                        for (int i = 0, x = fr.x; i < count; i++, x++) {
+                            final int color = rowColors[i];
+                            if (color != 0) { // Transparent, keep the canvas pixel
+                                final int b = (x / f) << 2;
+                                sum[b]++;
+                                sum[b + 1] += color >>> 16 & 0xFF;
+                                sum[b + 2] += color >>> 8 & 0xFF;
+                                sum[b + 3] += color & 0xFF;
+                            }
+                        }
+                        if ((y + 1) % f == 0 || row == clipH - 1) {
+                            flushBlocks(fr, s, y / f, clipW);
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Blends the summed up pixels of a line of blocks into the canvas,
+             * then resets the sums. Sums and products are longs, as a block of
+             * a large factor holds more than Integer.MAX_VALUE / 255 pixels.
+             */
+            private void flushBlocks(final GifFrame fr, final int s, final int by, final int clipW) {
+                final int f = factors[s], cw = getWidth(s);
+                final int[] canvas = canvases[s];
+                final long[] sum = sums[s];
+                final int bh = Math.min(f, h - by * f);
+                for (int bx = fr.x / f, end = (fr.x + clipW - 1) / f; bx <= end; bx++) {
+                    final int b = bx << 2;
+                    final long n = sum[b];
+                    if (n == 0) {
+                        continue;
+                    }
+                    final long pixels = (long) Math.min(f, w - bx * f) * bh; // Block size
+                    final long keep = pixels - n, half = pixels >>> 1;
+                    final int old = canvas[by * cw + bx];
+                    final int a = (int) ((n * 255 + keep * (old >>> 24) + half) / pixels);
+                    final int r = (int) ((sum[b + 1] + keep * (old >>> 16 & 0xFF) + half) / pixels);
+                    final int g = (int) ((sum[b + 2] + keep * (old >>> 8 & 0xFF) + half) / pixels);
+                    final int bl = (int) ((sum[b + 3] + keep * (old & 0xFF) + half) / pixels);
+                    canvas[by * cw + bx] = a << 24 | r << 16 | g << 8 | bl;
+                    sum[b] = sum[b + 1] = sum[b + 2] = sum[b + 3] = 0;
+                }
+            }
+
+            /**
+             * Fades the blocks below the frame area by the share of their
+             * pixels that the frame area covers.
+             */
+            private void clearBlocks(final GifFrame fr, final int s) {
+                final int f = factors[s], cw = getWidth(s);
+                final int[] canvas = canvases[s];
+                final int x0 = fr.x, x1 = Math.min(fr.x + fr.w, w), y0 = fr.y, y1 = Math.min(fr.y + fr.h, h);
+                for (int by = y0 / f; by * f < y1; by++) {
+                    final int top = by * f, bottom = Math.min(top + f, h);
+                    final int coveredH = Math.min(bottom, y1) - Math.max(top, y0);
+                    for (int bx = x0 / f; bx * f < x1; bx++) {
+                        final int left = bx * f, right = Math.min(left + f, w);
+                        final long pixels = (long) (right - left) * (bottom - top);
+                        final long keep = pixels - (long) (Math.min(right, x1) - Math.max(left, x0)) * coveredH;
+                        final long half = pixels >>> 1;
+                        final int old = canvas[by * cw + bx];
+                        canvas[by * cw + bx] = (int) (((old >>> 24) * keep + half) / pixels) << 24
+                                | (int) (((old >>> 16 & 0xFF) * keep + half) / pixels) << 16
+                                | (int) (((old >>> 8 & 0xFF) * keep + half) / pixels) << 8
+                                | (int) (((old & 0xFF) * keep + half) / pixels);
+                    }
+                }
+            }
+
+            /**
+             * Copies the blocks below the frame area to or from the backup.
+             */
+            private void copyBlocks(final GifFrame fr, final int s, final boolean save) {
+                final int f = factors[s], cw = getWidth(s);
+                final int x1 = Math.min(fr.x + fr.w, w), y1 = Math.min(fr.y + fr.h, h);
+                if (x1 <= fr.x || y1 <= fr.y) {
+                    return;
+                }
+                final int bx0 = fr.x / f, bw = (x1 - 1) / f - bx0 + 1;
+                final int by0 = fr.y / f, bh = (y1 - 1) / f - by0 + 1;
+                if (save && (backups[s] == null || backups[s].length < bw * bh)) {
+                    backups[s] = new int[bw * bh]; // Grows to the largest area
+                }
+                for (int row = 0, src = by0 * cw + bx0, dest = 0; row < bh; row++, src += cw, dest += bw) {
+                    if (save) {
+                        arraycopy(canvases[s], src, backups[s], dest, bw);
+                    } else {
+                        arraycopy(backups[s], dest, canvases[s], src, bw);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The part of the canvas that changed from one frame to the next, see
+     * {@link GifImage#getDelta(int)}. The region covers the frame's area and,
+     * if the previous frame was disposed by clearing or restoring its area,
+     * the previous frame's area as well.
+     */
+    public static final class FrameDelta {
+        private final int x;
+        private final int y;
+        private final int w;
+        private final int h;
+        private final int disposal; // Applied to the previous frame
+        private int[] pixels; // ARGB, row by row
+
+        private FrameDelta(final int x, final int y, final int w, final int h, final int disposal) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.disposal = disposal;
+        }
+
+        /**
+         * Copies the changed region into a canvas holding the previous frame,
+         * which turns it into this frame.
+         *
+         * @param canvas Image of the full size holding the previous frame
+         */
+        public void applyTo(final BufferedImage canvas) {
+            if (w > 0 && h > 0) {
+                canvas.setRGB(x, y, w, h, pixels, 0, w);
+            }
+        }
+
+        /**
+         * @return Position of the changed region from the left
+         */
+        public int getX() {
+            return x;
+        }
+
+        /**
+         * @return Position of the changed region from the top
+         */
+        public int getY() {
+            return y;
+        }
+
+        /**
+         * @return Width of the changed region, 0 if nothing changed
+         */
+        public int getWidth() {
+            return w;
+        }
+
+        /**
+         * @return Height of the changed region, 0 if nothing changed
+         */
+        public int getHeight() {
+            return h;
+        }
+
+        /**
+         * @return ARGB pixels of the changed region after drawing the frame,
+         * row by row. The array is not copied.
+         */
+        public int[] getPixels() {
+            return pixels;
+        }
+
+        /**
+         * @return Disposal method of the previous frame, which was applied
+         * before drawing this frame. 2 and 3 mean that the previous frame's
+         * area was cleared or restored, 0 for the first frame.
+         */
+        public int getPreviousDisposalMethod() {
+            return disposal;
+        }
+    }
+
+    /**
+     * Receives timings and counters while a decoder reads images and draws
+     * their frames, e.g. to feed them into a metrics system. Installed with
+     * {@link GifDecoder#setListener(DecodeListener)}. Without a listener,
+     * nothing is measured.
+     */
+    public interface DecodeListener {
+        /**
+         * Called after an image has been parsed, on the thread that read it.
+         *
+         * @param image           The parsed image, no frames drawn yet
+         * @param parseNanos      Time spent parsing the image's blocks
+         * @param compressedBytes Size of the input
+         */
+        default void imageParsed(final GifImage image, final long parseNanos, final long compressedBytes) {
+        }
+
+        /**
+         * Called after a frame has been drawn, on the thread that drew it,
+         * while the image is locked. Frames drawn on the way to a requested
+         * frame are reported as well.
+         *
+         * @param image   The image the frame belongs to
+         * @param metrics Timings and counters of the frame
+         */
+        default void frameDrawn(final GifImage image, final FrameMetrics metrics) {
+        }
+    }
+
+    /**
+     * Timings and counters of decoding and drawing one frame, see
+     * {@link DecodeListener#frameDrawn(GifImage, FrameMetrics)}.
+     */
+    public static final class FrameMetrics {
+        private int frameIndex;
+        private long compressedBytes; // Image data read, including sub-block sizes
+        private int codesRead;
+        private int clearCodes;
+        private int tableFullEvents;
+        private long decodeNanos;
+        private long compositeNanos;
+        private long allocatedBytes; // Buffers and images created for the frame
+
+        private FrameMetrics() {
+        }
+
+        /**
+         * @return Index of the frame, 0 to N-1
+         */
+        public int getFrameIndex() {
+            return frameIndex;
+        }
+
+        /**
+         * @return Number of image data bytes read, including the sizes of the
+         * sub-blocks
+         */
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        /**
+         * @return Number of LZW codes read, including CLEAR and EOI codes
+         */
+        public int getCodesRead() {
+            return codesRead;
+        }
+
+        /**
+         * @return Number of CLEAR codes read, including the leading one
+         */
+        public int getClearCodes() {
+            return clearCodes;
+        }
+
+        /**
+         * @return Number of times the code table filled up to 4096 entries
+         */
+        public int getTableFullEvents() {
+            return tableFullEvents;
+        }
+
+        /**
+         * @return Time spent decoding the image data into palette indices,
+         * including moving the rows of interlaced frames into place
+         */
+        public long getDecodeNanos() {
+            return decodeNanos;
+        }
+
+        /**
+         * @return Time spent drawing the palette indices onto the canvas,
+         * including disposal and copying the frame
+         */
+        public long getCompositeNanos() {
+            return compositeNanos;
+        }
+
+        /**
+         * @return Number of bytes allocated for buffers and images, which
+         * couldn't be reused from earlier frames
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+
+    /**
+     * Describes how complete an image was, see
+     * {@link GifImage#getDiagnostics()}. Truncated image data is decoded as
+     * far as it goes, the missing pixels keep the canvas below them. In
+     * lenient mode, see {@link GifDecoder#setLenient(boolean)}, reading also
+     * stops early at truncated or invalid blocks.
+     */
+    public static final class Diagnostics {
+        private final long truncatedAt;
+        private final long corruptAt;
+        private final boolean trailer;
+        private final int[] missingPixels; // Per frame, -1 if unknown
+
+        private Diagnostics(final long truncatedAt, final long corruptAt, final boolean trailer,
+                            final int[] missingPixels) {
+            this.truncatedAt = truncatedAt;
+            this.corruptAt = corruptAt;
+            this.trailer = trailer;
+            this.missingPixels = missingPixels;
+        }
+
+        /**
+         * @return True if the data wasn't truncated or corrupt and no frame
+         * is missing pixels. A missing trailer alone is tolerated.
+         */
+        public boolean isComplete() {
+            return truncatedAt < 0 && corruptAt < 0 && getMissingPixels() == 0;
+        }
+
+        /**
+         * @return Offset in the input where the data ended in the middle of
+         * a block, or -1 if it didn't
+         */
+        public long getTruncationOffset() {
+            return truncatedAt;
+        }
+
+        /**
+         * @return Offset in the input of an invalid block that ended
+         * reading, or -1 if there was none
+         */
+        public long getCorruptionOffset() {
+            return corruptAt;
+        }
+
+        /**
+         * @return True if the image ended with a GIF trailer
+         */
+        public boolean hasTrailer() {
+            return trailer;
+        }
+
+        /**
+         * @return Number of frames read
+         */
+        public int getFrameCount() {
+            return missingPixels.length;
+        }
+
+        /**
+         * @param index Index of the frame, 0 to N-1
+         * @return Number of the frame's pixels missing from its image data,
+         * or -1 if unknown because the image data has been discarded
+         */
+        public int getMissingPixels(final int index) {
+            return missingPixels[index];
+        }
+
+        /**
+         * @return Number of pixels missing from the image data of all frames
+         */
+        public long getMissingPixels() {
+            long sum = 0;
+            for (final int missing : missingPixels) {
+                sum += Math.max(0, missing);
+            }
+            return sum;
+        }
+
+        @Override
+        public String toString() {
+            return "Diagnostics[frames=" + missingPixels.length + ", missingPixels=" + getMissingPixels()
+                    + ", truncatedAt=" + truncatedAt + ", corruptAt=" + corruptAt + ", trailer=" + trailer + "]";
+        }
+    }
+
+    /**
+     * Reads a GIF data stream block by block. Frames can be drawn as soon as
+     * their image data has arrived, without knowing the length of the stream
+     * or waiting for its end. Only the image data of the frame that is read
+     * next is buffered. The limits, lenient mode and listener of the decoder
+     * that created the stream apply like for {@link GifDecoder#decode(byte[])}.
+     */
+    public static final class GifStream {
+        private final InputStream is;
+        private final GifDecoder decoder;
+        private final Limits limits;
+        private final boolean lenient;
+        private final GifImage img;
+        private final boolean retain; // Keep image data to draw frames again
+        private final byte[] buf = new byte[1024]; // Holds the block read last
+        private final ByteBuffer in = ByteBuffer.wrap(buf); // Same as buf
+        private Deadline deadline; // Of the current request, or null
+        private long pos; // Number of bytes read from the stream
+        private long totalPixels; // Sum of the frame sizes
+        private int nextFrame; // Index of the frame returned next
+        private boolean done; // True after the trailer or the end of the stream
+
+        private GifStream(final GifDecoder decoder, final InputStream is, final boolean retain) throws IOException {
+            this.is = is;
+            this.decoder = decoder;
+            limits = decoder.limits;
+            lenient = decoder.lenient;
+            img = decoder.new GifImage();
+            this.retain = retain;
+            if (!retain) {
+                img.setCachePolicy(CachePolicy.NONE);
+            }
+            deadline = Deadline.start(limits);
+            readFully(buf, 0, 13); // Header and logical screen descriptor
+            readHeader(in, img);
+            readLogicalScreenDescriptor(img, in, 6);
+            checkCanvasSize(limits, "Logical screen", img.w, img.h);
+            if (img.hasGlobColTbl) {
+                img.globalColTbl = new int[img.sizeOfGlobColTbl];
+                readFully(buf, 0, 3 * img.sizeOfGlobColTbl);
+                readColTbl(in, img.globalColTbl, 0);
+            }
+        }
+
+        /**
+         * @return The GIF image read so far. Its frame count grows with every
+         * frame that is read. Frames whose image data has been discarded
+         * can't be drawn by {@link GifImage#getFrame(int)} anymore.
+         */
+        public GifImage getImage() {
+            return img;
+        }
+
+        /**
+         * Reads the stream up to the end of the next frame's image data and
+         * draws the frame. Afterwards, the frame's image data is discarded.
+         * The decoder's limits apply to each call on its own.
+         *
+         * @return The next frame, or null if there are no more frames
+         * @throws IOException If an I/O error occurs or the image violates the
+         *                     GIF specification or the decoder's limits
+         */
+        public BufferedImage nextFrame() throws IOException {
+            deadline = Deadline.start(limits);
+            if (nextFrame == img.frames.size() && !readFrame()) {
+                return null;
+            }
+            final int index = nextFrame++;
+            final BufferedImage frame = img.getFrame(index);
+            if (!retain) {
+                img.frames.get(index).data = null;
+            }
+            return frame;
+        }
+
+        private void readAll() throws IOException {
+            boolean more = true;
+            while (more) {
+                more = readFrame(); // Frames are kept by the image
+            }
+        }
+
+        /**
+         * @return True if a frame has been read, false if the stream ended
+         */
+        private boolean readFrame() throws IOException {
+            GifFrame frame = null; // Currently open frame
+            while (!done) {
+                checkDeadline();
+                final long blockPos = pos;
+                try {
+                    final int block = read();
+                    switch (block) {
+                        case 0x21: // Extension introducer
+                            final int label = readFully();
+                            switch (label) {
+                                case 0xFE: // Comment extension
+                                    skipSubBlocks(readFully());
+                                    break;
+                                case 0xFF: // Application extension
+                                    readAppExt();
+                                    break;
+                                case 0x01: // Plain text extension
+                                    frame = null; // Its graphic control extension, no frame
+                                    skipSubBlocks(readFully());
+                                    break;
+                                case 0xF9: // Graphic control extension
+                                    if (frame == null) {
+                                        checkFrameCount(limits, img.frames.size() + 1);
+                                        frame = decoder.new GifFrame();
+                                    }
+                                    readFully(buf, 2, 6);
+                                    readGraphicControlExt(frame, in, 0);
+                                    break;
+                                default:
+                                    if (!lenient) {
+                                        throw new IOException("Unknown extension at " + blockPos);
+                                    }
+                                    img.corruptAt = blockPos;
+                                    done = true;
+                            }
+                            break;
+                        case 0x2C: // Image descriptor
+                            if (frame == null) {
+                                checkFrameCount(limits, img.frames.size() + 1);
+                                frame = decoder.new GifFrame();
+                            }
+                            readFully(buf, 1, 9);
+                            readImgDescr(frame, in, 0);
+                            checkCanvasSize(limits, "Frame " + img.frames.size(), frame.w, frame.h);
+                            totalPixels += (long) frame.w * frame.h;
+                            if (totalPixels > limits.maxTotalPixels) {
+                                throw new IOException("Frame sizes add up to more than " + limits.maxTotalPixels
+                                        + " pixels");
+                            }
+                            if (frame.hasLocColTbl) {
+                                frame.localColTbl = new int[frame.sizeOfLocColTbl];
+                                readFully(buf, 0, 3 * frame.sizeOfLocColTbl);
+                                readColTbl(in, frame.localColTbl, 0);
+                            }
+                            if (!readImgData(frame)) {
+                                return false;
+                            }
+                            img.frames.add(frame);
+                            return true;
+                        case 0x3B: // GIF Trailer
+                            img.trailer = true;
+                            done = true;
+                            break;
+                        case -1: // End of stream without trailer
+                            if (frame != null && !lenient) { // Graphic control extension only
+                                throw new EOFException("Image is truncated.");
+                            }
+                            done = true;
+                            break;
+                        default:
+                            // Unknown block. The image is corrupted. As the stream's
+                            // length is unknown, return gracefully if there are
+                            // frames. They should be error-free.
+                            if (img.frames.isEmpty() && !lenient) {
+                                throw new IOException("Unknown block at: " + blockPos);
+                            }
+                            img.corruptAt = blockPos;
+                            done = true;
+                    }
+                } catch (final EOFException e) { // The block exceeds the stream's end
+                    if (!lenient) {
+                        throw e;
+                    }
+                    img.truncatedAt = blockPos;
+                    done = true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Reads the LZW minimum code size and the image data sub-blocks,
+         * including their size bytes. A truncated stream ends the image data
+         * with the bytes available, like {@link GifDecoder#read(byte[])} does.
+         *
+         * @return False if the frame is corrupt and dropped in lenient mode
+         */
+        private boolean readImgData(final GifFrame fr) throws IOException {
+            final int minCodeSize = readFully();
+            if (minCodeSize > MAX_MIN_CODE_SIZE) {
+                if (!lenient) {
+                    throw new IOException("Invalid LZW minimum code size at " + (pos - 1));
+                }
+                img.corruptAt = pos - 1;
+                done = true;
+                return false;
+            }
+            setCodeSizes(fr, minCodeSize);
+            byte[] data = new byte[4096];
+            int size = 1;
+            int subBlockSize = read();
+            if (subBlockSize < 0) { // Stream ends right after the code size
+                img.truncatedAt = pos;
+                done = true;
+                subBlockSize = 0;
+            }
+            data[0] = (byte) subBlockSize;
+            while (subBlockSize > 0) {
+                checkDeadline();
+                if (data.length < size + subBlockSize + 1) {
+                    data = Arrays.copyOf(data, Math.max(data.length << 1, size + subBlockSize + 1));
+                }
+                // Read the sub-block and the size of the next one in one go
+                final int n = read(data, size, subBlockSize + 1);
+                size += n;
+                if (n <= subBlockSize) { // Sub-block exceeds stream end
+                    img.truncatedAt = pos;
+                    done = true;
+                    break;
+                }
+                subBlockSize = data[size - 1] & 0xFF;
+            }
+            fr.data = ByteBuffer.wrap(data, 0, size).order(ByteOrder.LITTLE_ENDIAN); // For BitReader
+            fr.dataPos = 0;
+            return true;
+        }
+
+        /**
+         * Reads an application extension's identifier and, for the loop
+         * extension, the number of loops. Everything else is skipped, so an
+         * extension of any length only needs the block buffer.
+         */
+        private void readAppExt() throws IOException {
+            int subBlockSize = readFully();
+            if (subBlockSize == 11) {
+                readFully(buf, 0, 12); // Id, auth code and the next size byte
+                img.appId = ascii(in, 0, 8);
+                img.appAuthCode = ascii(in, 8, 3);
+                subBlockSize = buf[11] & 0xFF;
+                if (subBlockSize == 3 && isLoopExtension(img.appId)) {
+                    readFully(buf, 0, 4); // Loop data and the next size byte
+                    img.repetitions = buf[1] & 0xFF | (buf[2] & 0xFF) << 8;
+                    subBlockSize = buf[3] & 0xFF;
+                }
+            }
+            skipSubBlocks(subBlockSize);
+        }
+
+        /**
+         * @param subBlockSize Size of the first sub-block, already read
+         */
+        private void skipSubBlocks(int subBlockSize) throws IOException {
+            while (subBlockSize > 0) {
+                checkDeadline();
+                readFully(buf, 0, subBlockSize);
+                subBlockSize = readFully();
+            }
+        }
+
+        private void checkDeadline() throws InterruptedIOException {
+            if (deadline != null && deadline.expired()) {
+                throw new InterruptedIOException("Timeout expired or interrupted while reading the image");
+            }
+        }
+
+        /**
+         * Counts bytes read from the stream, which must not exceed the
+         * compressed size limit.
+         */
+        private void advance(final int n) throws IOException {
+            pos += n;
+            if (pos > limits.maxCompressedBytes) {
+                throw new IOException("Image size exceeds the limit of " + limits.maxCompressedBytes + " bytes");
+            }
+        }
+
+        /**
+         * @return The next byte, or -1 at the end of the stream
+         */
+        private int read() throws IOException {
+            final int b = is.read();
+            if (b >= 0) {
+                advance(1);
+            }
+            return b;
+        }
+
+        /**
+         * @return Number of bytes read, less than len at the end of the stream
+         */
+        private int read(final byte[] b, final int off, final int len) throws IOException {
+            int n = 0;
+            while (n < len) {
+                final int count = is.read(b, off + n, len - n);
+                if (count < 0) {
+                    break;
+                }
+                n += count;
+            }
+            advance(n);
+            return n;
+        }
+
+        private int readFully() throws IOException {
+            final int b = read();
+            if (b < 0) {
+                throw new EOFException("Image is truncated.");
+            }
+            return b;
+        }
+
+        private void readFully(final byte[] b, final int off, final int len) throws IOException {
+            if (read(b, off, len) < len) {
+                throw new EOFException("Image is truncated.");
+            }
+        }
+    }
+
+    /**
+     * Summary of a GIF image's properties that can be gathered without
+     * decoding any image data, see {@link GifDecoder#probe(ByteBuffer)}.
+     */
+    public static final class GifInfo {
+        private static final int FIELDS = 7; // Values per frame
+        private String header; // GIF87a or GIF89a
+        private int w; // Width of the logical screen
+        private int h; // Height of the logical screen
+        private boolean hasGlobColTbl;
+        private int sizeOfGlobColTbl; // Number of colors
+        private int bgColIndex; // Background color index
+        private int repetitions; // 0: infinite loop, N: number of loops
+        private int frameCount;
+        private int duration; // Sum of all delays
+        // Per frame: x, y, w, h, delay, start time, flags
+        private int[] frames = new int[16 * FIELDS];
+
+        private void addFrame() {
+            if (frames.length < (frameCount + 1) * FIELDS) {
+                frames = Arrays.copyOf(frames, frames.length << 1);
+            }
+            frameCount++;
+        }
+
+        private void removeLastFrame() {
+            frameCount--;
+        }
+
+        /**
+         * @param flags Disposal method in bits 0-2, interlace flag in bit 3,
+         *              transparency flag in bit 4 and the size of the local
+         *              color table in bits 8-16
+         */
+        private void setLastFrame(final int x, final int y, final int w, final int h, final int delay,
+                                  final int flags) {
+            final int i = (frameCount - 1) * FIELDS;
+            frames[i] = x;
+            frames[i + 1] = y;
+            frames[i + 2] = w;
+            frames[i + 3] = h;
+            frames[i + 4] = delay;
+            frames[i + 6] = flags;
+        }
+
+        private GifInfo finish() {
+            for (int i = 0; i < frameCount * FIELDS; i += FIELDS) {
+                frames[i + 5] = duration; // Sum of all previous delays
+                duration += frames[i + 4];
+            }
+            return this;
+        }
+
+        private int get(final int index, final int field) {
+            if (index < 0 || index >= frameCount) {
+                throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+            }
+            return frames[index * FIELDS + field];
+        }
+
+        /**
+         * @return GIF87a or GIF89a
+         */
+        public String getHeader() {
+            return header;
+        }
+
+        /**
+         * @return The width of the GIF image
+         */
+        public int getWidth() {
+            return w;
+        }
+
+        /**
+         * @return The height of the GIF image
+         */
+        public int getHeight() {
+            return h;
+        }
+
+        /**
+         * @return The number of frames contained in this GIF image
+         */
+        public int getFrameCount() {
+            return frameCount;
+        }
+
+        /**
+         * @return Sum of all frames' delays as number of hundredths (1/100)
+         * of a second
+         */
+        public int getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return 0 for an infinite loop, N for N loops, as specified by the
+         * NETSCAPE application extension
+         */
+        public int getRepetitions() {
+            return repetitions;
+        }
+
+        /**
+         * @return True if the image has a global color table
+         */
+        public boolean hasGlobalColorTable() {
+            return hasGlobColTbl;
+        }
+
+        /**
+         * @return Number of colors in the global color table, 0 if there is
+         * none
+         */
+        public int getGlobalColorTableSize() {
+            return hasGlobColTbl ? sizeOfGlobColTbl : 0;
+        }
+
+        /**
+         * @return Index of the background color in the global color table
+         */
+        public int getBackgroundColorIndex() {
+            return bgColIndex;
+        }
+
+        /**
+         * @param index Index of the frame, 0 to N-1
+         * @return Position of the frame area on the canvas from the left
+         */
+        public int getX(final int index) {
+            return get(index, 0);
+        }
+
+        /**
+         * @param index Index of the frame, 0 to N-1
+         * @return Position of the frame area on the canvas from the top
+         */
+        public int getY(final int index) {
+            return get(index, 1);
+        }
+
+        /**
+         * @param index Index of the frame, 0 to N-1
+         * @return Width of the frame area, may differ from the image width
+         */
+        public int getFrameWidth(final int index) {
+            return get(index, 2);
+        }
+
+        /**
+         * @param index Index of the frame, 0 to N-1
+         * @return Height of the frame area, may differ from the image height
+         */
+        public int getFrameHeight(final int index) {
+            return get(index, 3);
+        }
+
+        /**
+         * @param index Index of the frame, 0 to N-1
+         * @return Delay as number of hundredths (1/100) of a second
+         */
+        public int getDelay(final int index) {
+            return get(index, 4);
+        }
+
+        /**
+         * @param index Index of the frame, 0 to N-1
+         * @return Sum of the delays of all previous frames as number of
+         * hundredths (1/100) of a second
+         */
+        public int getStartTime(final int index) {
+            return get(index, 5);
+        }
+
+        /**
+         * @param index Index of the frame, 0 to N-1
+         * @return 0=NO_ACTION, 1=NO_DISPOSAL, 2=RESTORE_BG, 3=RESTORE_PREV,
+         * 4-7 undefined
+         */
+        public int getDisposalMethod(final int index) {
+            return get(index, 6) & 7;
+        }
+
+        /**
+         * @param index Index of the frame, 0 to N-1
+         * @return True if the frame's pixel lines are interlaced
+         */
+        public boolean isInterlaced(final int index) {
+            return (get(index, 6) & 1 << 3) != 0;
+        }
+
+        /**
+         * @param index Index of the frame, 0 to N-1
+         * @return True if the frame has a transparent color
+         */
+        public boolean hasTransparency(final int index) {
+            return (get(index, 6) & 1 << 4) != 0;
+        }
+
+        /**
+         * @param index Index of the frame, 0 to N-1
+         * @return Number of colors in the frame's local color table, 0 if
+         * there is none
+         */
+        public int getLocalColorTableSize(final int index) {
+            return get(index, 6) >>> 8;
+        }
+    }
+
+    /**
+     * Decodes many GIF images at once on a fork/join pool. Every image is read
+     * and all of its frames are drawn by one task, while the image data of
+     * larger animations is decoded by further tasks that idle threads steal.
+     * All images share the decoder's buffers, limits, lenient mode and
+     * listener. With the default {@link CachePolicy#UNBOUNDED} cache policy,
+     * every image keeps all of its frames, so the memory held by a batch
+     * grows with the number of frames of all images not released yet.
+     */
+    public static final class BatchDecoder implements AutoCloseable {
+        private final GifDecoder decoder; // Shared buffers and settings
+        private final ForkJoinPool pool;
+        private final boolean ownPool; // Shut down the pool on close()
+
+        /**
+         * Creates a batch decoder with its own pool, using all processors.
+         */
+        public BatchDecoder() {
+            this(new GifDecoder());
+        }
+
+        /**
+         * Creates a batch decoder with its own pool, using all processors.
+         *
+         * @param decoder Decoder whose limits, lenient mode and listener
+         *                apply to all images, see
+         *                {@link GifDecoder#setLimits(Limits)}
+         */
+        public BatchDecoder(final GifDecoder decoder) {
+            this(decoder, new ForkJoinPool(), true);
+        }
+
+        /**
+         * @param pool Pool to run the decoding tasks on, not shut down by
+         *             {@link #close()}
+         */
+        public BatchDecoder(final ForkJoinPool pool) {
+            this(new GifDecoder(), pool, false);
+        }
+
+        /**
+         * @param decoder Decoder whose limits, lenient mode and listener
+         *                apply to all images
+         * @param pool    Pool to run the decoding tasks on, not shut down by
+         *                {@link #close()}
+         */
+        public BatchDecoder(final GifDecoder decoder, final ForkJoinPool pool) {
+            this(decoder, pool, false);
+        }
+
+        private BatchDecoder(final GifDecoder decoder, final ForkJoinPool pool, final boolean ownPool) {
+            this.decoder = decoder;
+            this.pool = pool;
+            this.ownPool = ownPool;
+        }
+
+        /**
+         * @param in Raw image data, see {@link GifDecoder#read(byte[])}
+         * @return Completes with the image once all of its frames have been
+         * drawn, or exceptionally with an IOException if it can't be read
+         */
+        public CompletableFuture<GifImage> submit(final byte[] in) {
+            return submit(() -> decoder.decode(in));
+        }
+
+        /**
+         * @param path GIF file to read, see {@link GifDecoder#read(Path)}
+         * @return Completes with the image once all of its frames have been
+         * drawn, or exceptionally with an IOException if it can't be read
+         */
+        public CompletableFuture<GifImage> submit(final Path path) {
+            return submit(() -> decoder.decode(path));
+        }
+
+        /**
+         * @param paths GIF files to read
+         * @return One future per file, in the same order, see
+         * {@link #submit(Path)}
+         */
+        public List<CompletableFuture<GifImage>> submitAll(final Collection<Path> paths) {
+            final List<CompletableFuture<GifImage>> results = new ArrayList<CompletableFuture<GifImage>>(paths.size());
+            for (final Path path : paths) {
+                results.add(submit(path));
+            }
+            return results;
+        }
+
+        private CompletableFuture<GifImage> submit(final ImageSource source) {
+            return CompletableFuture.supplyAsync(() -> {
+                final GifImage img;
+                try {
+                    img = source.read();
+                } catch (final IOException e) {
+                    throw new CompletionException(e);
+                }
+                final int n = img.getFrameCount();
+                if (n > 1) {
+                    img.setDecodeExecutor(pool); // Let idle threads help out
+                    try {
+                        img.getFrame(n - 1); // Draws and caches all frames
+                    } finally {
+                        img.setDecodeExecutor(null); // The pool may be shut down later
+                    }
+                } else if (n == 1) {
+                    img.getFrame(0);
+                }
+                return img;
+            }, pool);
+        }
+
+        /**
+         * Shuts down the pool if it was created by this batch decoder. Tasks
+         * that have been submitted already still complete.
+         */
+        @Override
+        public void close() {
+            if (ownPool) {
+                pool.shutdown();
+            }
+        }
+
+        private interface ImageSource {
+            GifImage read() throws IOException;
+        }
+    }
+
+    static final boolean DEBUG_MODE = false;
+    static final int MAX_MIN_CODE_SIZE = 11; // CLEAR and EOI must fit 12 bit codes
+    static final Tracer TRACER = loadTracer(); // Null without Flight Recorder
+
+    /**
+     * Emits events for the JDK Flight Recorder, see {@code GifEvents}. Each
+     * begin method returns an event to pass to the matching end method, or
+     * null if no recording wants the event.
+     */
+    interface Tracer {
+        Object beginParse();
+
+        void endParse(Object event, int width, int height, int frames, long compressedBytes);
+
+        Object beginDecode();
+
+        void endDecode(Object event, int frameIndex, int width, int height, long compressedBytes, boolean interlaced);
+
+        Object beginDraw();
+
+        void endDraw(Object event, int frameIndex, int x, int y, int width, int height, int disposalMethod,
+                     boolean interlaced);
+    }
+
+    /**
+     * Loads the event classes reflectively, so that this class neither needs
+     * them nor a JDK with Flight Recorder to compile or run.
+     *
+     * @return The tracer, or null if events can't be emitted
+     */
+    private static Tracer loadTracer() {
+        try {
+            return (Tracer) Class.forName(GifDecoder.class.getPackage().getName() + ".GifEvents")
+                    .getDeclaredConstructor().newInstance();
+        } catch (final Exception | LinkageError e) { // Missing class or no jdk.jfr
+            return null;
+        }
+    }
+
+    private final AtomicReferenceArray<byte[]> indexBuffers; // Unused buffers
+    private final AtomicReferenceArray<int[]> pixelBuffers; // Unused buffers
+    private final long maxBufferSize; // Larger buffers are not kept
+    private volatile DecodeListener listener; // Null if nothing is measured
+    private volatile Limits limits = Limits.NONE;
+    private volatile boolean lenient;
+
+    /**
+     * Creates a decoder that can be used to read many images, see
+     * {@link #decode(byte[])}. Images read by the same decoder reuse its
+     * buffers when they draw frames, so that drawing frames hardly allocates
+     * memory except for the frames returned. The buffers grow to the size of
+     * the largest frame drawn. A decoder can be used by several threads.
+     */
+    public GifDecoder() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a decoder that keeps no buffers larger than the given size.
+     * Images with larger frames still work, but allocate new buffers for each
+     * frame.
+     *
+     * @param maxBufferSize Size limit in bytes for each kept buffer
+     * @see #GifDecoder()
+     */
+    public GifDecoder(final long maxBufferSize) {
+        if (maxBufferSize < 0) {
+            throw new IllegalArgumentException("Negative buffer size limit: " + maxBufferSize);
+        }
+        this.maxBufferSize = maxBufferSize;
+        final int poolSize = 2 * Runtime.getRuntime().availableProcessors();
+        indexBuffers = new AtomicReferenceArray<byte[]>(poolSize);
+        pixelBuffers = new AtomicReferenceArray<int[]>(poolSize);
+    }
+
+    /**
+     * Sets limits for the images read by this decoder from now on, and for
+     * drawing the frames of all its images, including images read before.
+     * Images exceeding a size limit are rejected with an IOException while
+     * they are read. Requests exceeding the timeout, or whose thread is
+     * interrupted, are aborted with a CancellationException while drawing,
+     * or an InterruptedIOException while reading.
+     *
+     * @param limits The limits, {@link Limits#NONE} by default
+     */
+    public void setLimits(final Limits limits) {
+        if (limits == null) {
+            throw new NullPointerException("limits");
+        }
+        this.limits = limits;
+    }
+
+    /**
+     * In lenient mode, images that are truncated or corrupt in the middle
+     * of a block are read up to that block, instead of being rejected with
+     * an IOException. A frame without image data at the end is dropped.
+     * Image data that ends early is decoded as far as it goes in either mode.
+     * See {@link GifImage#getDiagnostics()} for what was missing.
+     *
+     * @param lenient True to return the frames read so far, false by default
+     */
+    public void setLenient(final boolean lenient) {
+        this.lenient = lenient;
+    }
+
+    /**
+     * Installs a listener that receives timings and counters of the images
+     * read by this decoder and their frames, including images read before.
+     *
+     * @param listener The listener, or null to stop measuring
+     */
+    public void setListener(final DecodeListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param metrics Counts the bytes if a buffer is allocated, or null
+     * @return A buffer with at least the given length and undefined content
+     */
+    private byte[] acquireIndices(final int length, final FrameMetrics metrics) {
+        for (int i = 0; i < indexBuffers.length(); i++) {
+            final byte[] buf = indexBuffers.get(i);
+            if (buf != null && buf.length >= length && indexBuffers.compareAndSet(i, buf, null)) {
+                return buf;
+            }
+        }
+        if (metrics != null) {
+            metrics.allocatedBytes += length;
         }
+        return new byte[length];
+    }
 
-        /**
-         * @return The number of frames contained in this GIF image
-         */
-        public final int getFrameCount() {
-            return frames.size();
+    /**
+     * @param metrics Counts the bytes if a buffer is allocated, or null
+     * @return A buffer with at least the given length and undefined content
+     */
+    private int[] acquirePixels(final int length, final FrameMetrics metrics) {
+        for (int i = 0; i < pixelBuffers.length(); i++) {
+            final int[] buf = pixelBuffers.get(i);
+            if (buf != null && buf.length >= length && pixelBuffers.compareAndSet(i, buf, null)) {
+                return buf;
+            }
         }
-
-        /**
-         * @return The height of the GIF image
-         */
-        public final int getHeight() {
-            return h;
+        if (metrics != null) {
+            metrics.allocatedBytes += 4L * length;
         }
+        return new int[length];
+    }
 
-        /**
-         * @return The width of the GIF image
-         */
-        public final int getWidth() {
-            return w;
+    /**
+     * Keeps a buffer for reuse, unless it exceeds the size limit. If all
+     * slots are taken, it replaces a smaller buffer.
+     */
+    private void release(final byte[] buf) {
+        if (buf.length > maxBufferSize) {
+            return;
+        }
+        for (int i = 0; i < indexBuffers.length(); i++) {
+            final byte[] old = indexBuffers.get(i);
+            if ((old == null || old.length < buf.length) && indexBuffers.compareAndSet(i, old, buf)) {
+                return;
+            }
         }
     }
 
-    static final boolean DEBUG_MODE = false;
+    /**
+     * Keeps a buffer for reuse, unless it exceeds the size limit. If all
+     * slots are taken, it replaces a smaller buffer.
+     */
+    private void release(final int[] buf) {
+        if (4L * buf.length > maxBufferSize) {
+            return;
+        }
+        for (int i = 0; i < pixelBuffers.length(); i++) {
+            final int[] old = pixelBuffers.get(i);
+            if ((old == null || old.length < buf.length) && pixelBuffers.compareAndSet(i, old, buf)) {
+                return;
+            }
+        }
+    }
 
     /**
-     * @param in Raw image data as a byte[] array
+     * @param in Raw image data as a byte[] array. The array is not copied,
+     *           frames are decoded from it when they are drawn. It must not be
+     *           modified while the returned GifImage is in use.
      * @return A GifImage object exposing the properties of the GIF image.
      * @throws IOException If the image violates the GIF specification or is truncated.
      */
     public static GifImage read(final byte[] in) throws IOException {
-        final GifDecoder decoder = new GifDecoder();
-        final GifImage img = decoder.new GifImage();
+        return new GifDecoder().decode(in);
+    }
+
+    /**
+     * @param path Path of a GIF file. The file is memory-mapped, so it isn't
+     *             copied to the heap. It must not be modified while the
+     *             returned GifImage is in use. The mapping is released when
+     *             the GifImage is garbage collected.
+     * @return A GifImage object exposing the properties of the GIF image.
+     * @throws IOException If an I/O error occurs, the image violates the GIF
+     *                     specification or is truncated.
+     */
+    public static GifImage read(final Path path) throws IOException {
+        return new GifDecoder().decode(path);
+    }
+
+    /**
+     * @param buffer Raw image data from the buffer's position to its limit,
+     *               e.g. a memory-mapped file. The buffer's content is not
+     *               copied, frames are decoded from it when they are drawn. It
+     *               must not be modified while the returned GifImage is in
+     *               use. The buffer's position and limit are left untouched.
+     * @return A GifImage object exposing the properties of the GIF image.
+     * @throws IOException If the image violates the GIF specification or is truncated.
+     */
+    public static GifImage read(final ByteBuffer buffer) throws IOException {
+        return new GifDecoder().decode(buffer);
+    }
+
+    /**
+     * Like {@link #read(byte[])}, but the returned image shares this
+     * decoder's buffers.
+     *
+     * @param in Raw image data, not copied
+     * @return A GifImage object exposing the properties of the GIF image.
+     * @throws IOException If the image violates the GIF specification or is truncated.
+     */
+    public GifImage decode(final byte[] in) throws IOException {
+        return decode(ByteBuffer.wrap(in));
+    }
+
+    /**
+     * Like {@link #read(Path)}, but the returned image shares this decoder's
+     * buffers.
+     *
+     * @param path Path of a GIF file, memory-mapped
+     * @return A GifImage object exposing the properties of the GIF image.
+     * @throws IOException If an I/O error occurs, the image violates the GIF
+     *                     specification or is truncated.
+     */
+    public GifImage decode(final Path path) throws IOException {
+        return decode(map(path));
+    }
+
+    /**
+     * Like {@link #read(ByteBuffer)}, but the returned image shares this
+     * decoder's buffers.
+     *
+     * @param buffer Raw image data from the buffer's position to its limit,
+     *               not copied
+     * @return A GifImage object exposing the properties of the GIF image.
+     * @throws IOException If the image violates the GIF specification or is truncated.
+     */
+    public GifImage decode(final ByteBuffer buffer) throws IOException {
+        final DecodeListener listener = this.listener;
+        final Object event = TRACER == null ? null : TRACER.beginParse();
+        final long start = listener == null ? 0 : System.nanoTime();
+        final GifImage img = parse(buffer, false);
+        if (listener != null) {
+            listener.imageParsed(img, System.nanoTime() - start, buffer.remaining());
+        }
+        if (event != null) {
+            TRACER.endParse(event, img.w, img.h, img.frames.size(), buffer.remaining());
+        }
+        return img;
+    }
+
+    /**
+     * @param buffer         Raw image data from the buffer's position to its
+     *                       limit
+     * @param firstFrameOnly True to stop after the first frame's image data
+     * @return The GIF image, with all frames or just the first one
+     * @throws IOException If the image violates the GIF specification or is truncated.
+     */
+    private GifImage parse(final ByteBuffer buffer, final boolean firstFrameOnly) throws IOException {
+        final Limits limits = this.limits;
+        final boolean lenient = this.lenient;
+        final Deadline deadline = Deadline.start(limits);
+        // Index 0 is the buffer's position. BitReader loads 8 bytes of image data at once, first byte lowest.
+        final ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        final int size = in.limit();
+        if (size > limits.maxCompressedBytes) {
+            throw new IOException("Image size of " + size + " bytes exceeds the limit of "
+                    + limits.maxCompressedBytes);
+        }
+        final GifImage img = new GifImage();
         GifFrame frame = null; // Currently open frame
+        long totalPixels = 0; // Sum of the frame sizes
         int pos = readHeader(in, img); // Read header, get next byte position
+        if (size < pos + 7) {
+            throw new IOException("Image is truncated.");
+        }
         pos = readLogicalScreenDescriptor(img, in, pos);
+        checkCanvasSize(limits, "Logical screen", img.w, img.h);
         if (img.hasGlobColTbl) {
+            if (size < pos + 3 * img.sizeOfGlobColTbl) {
+                throw new IOException("Image is truncated."); // No frames to return either
+            }
             img.globalColTbl = new int[img.sizeOfGlobColTbl];
             pos = readColTbl(in, img.globalColTbl, pos);
         }
-        while (pos < in.length) {
-            final int block = in[pos] & 0xFF;
+        while (pos < size) {
+            if (deadline != null && deadline.expired()) {
+                throw new InterruptedIOException("Timeout expired or interrupted while reading the image");
+            }
+            final int block = in.get(pos) & 0xFF;
+            int next = -1; // Index after the block, -1 if it exceeds the input's end
             switch (block) {
                 case 0x21: // Extension introducer
-                    if (pos + 1 >= in.length) {
-                        throw new IOException("Unexpected end of file.");
+                    // All extensions consist of sub-blocks after the label
+                    final int end = pos + 1 < size ? skipSubBlocks(in, pos + 2) : -1;
+                    if (end < 0) {
+                        break;
                     }
-                    switch (in[pos + 1] & 0xFF) {
+                    switch (in.get(pos + 1) & 0xFF) {
                         case 0xFE: // Comment extension
-                            pos = readTextExtension(in, pos);
+                            next = end;
                             break;
                         case 0xFF: // Application extension
-                            pos = readAppExt(img, in, pos);
+                            if (in.get(pos + 2) == 11) { // Identifier and auth code
+                                readAppExt(img, in, pos);
+                            }
+                            next = end;
                             break;
                         case 0x01: // Plain text extension
-                            frame = null; // End of current frame
-                            pos = readTextExtension(in, pos);
+                            if (frame != null) { // Its graphic control extension, no frame
+                                img.frames.remove(img.frames.size() - 1);
+                                frame = null;
+                            }
+                            next = end;
                             break;
                         case 0xF9: // Graphic control extension
+                            if (pos + 8 > size) {
+                                break;
+                            }
                             if (frame == null) {
-                                frame = decoder.new GifFrame();
+                                frame = new GifFrame();
                                 img.frames.add(frame);
+                                checkFrameCount(limits, img.frames.size());
                             }
-                            pos = readGraphicControlExt(frame, in, pos);
+                            next = readGraphicControlExt(frame, in, pos);
                             break;
                         default:
-                            throw new IOException("Unknown extension at " + pos);
+                            if (!lenient) {
+                                throw new IOException("Unknown extension at " + pos);
+                            }
+                            img.corruptAt = pos;
+                            next = size; // Exit loop
                     }
                     break;
                 case 0x2C: // Image descriptor
+                    if (pos + 10 > size) {
+                        break;
+                    }
                     if (frame == null) {
-                        frame = decoder.new GifFrame();
+                        frame = new GifFrame();
                         img.frames.add(frame);
+                        checkFrameCount(limits, img.frames.size());
+                    }
+                    int i = readImgDescr(frame, in, pos);
+                    checkCanvasSize(limits, "Frame " + (img.frames.size() - 1), frame.w, frame.h);
+                    totalPixels += (long) frame.w * frame.h;
+                    if (totalPixels > limits.maxTotalPixels) {
+                        throw new IOException("Frame sizes add up to more than " + limits.maxTotalPixels + " pixels");
                     }
-                    pos = readImgDescr(frame, in, pos);
                     if (frame.hasLocColTbl) {
+                        if (size < i + 3 * frame.sizeOfLocColTbl) {
+                            break;
+                        }
                         frame.localColTbl = new int[frame.sizeOfLocColTbl];
-                        pos = readColTbl(in, frame.localColTbl, pos);
+                        i = readColTbl(in, frame.localColTbl, i);
+                    }
+                    if (i >= size) { // No LZW minimum code size
+                        break;
+                    }
+                    if ((in.get(i) & 0xFF) > MAX_MIN_CODE_SIZE) {
+                        if (!lenient) {
+                            throw new IOException("Invalid LZW minimum code size at " + i);
+                        }
+                        img.corruptAt = i;
+                        next = size; // Exit loop
+                        break;
+                    }
+                    next = readImgData(frame, in, i);
+                    if (next < 0) { // Decoded as far as the data goes
+                        img.truncatedAt = size;
+                        next = size; // Exit loop
+                    }
+                    if (firstFrameOnly) {
+                        return img; // Don't look at the rest of the data
                     }
-                    pos = readImgData(frame, in, pos);
                     frame = null; // End of current frame
                     break;
                 case 0x3B: // GIF Trailer
-                    return img; // Found trailer, finished reading.
+                    img.trailer = true;
+                    next = size; // Found trailer, finished reading.
+                    break;
                 default:
                     // Unknown block. The image is corrupted. Strategies: a) Skip
                     // and wait for a valid block. Experience: It'll get worse. b)
                     // Throw exception. c) Return gracefully if we are almost done
                     // processing. The frames we have so far should be error-free.
-                    final double progress = 1.0 * pos / in.length;
-                    if (progress < 0.9) {
+                    final double progress = 1.0 * pos / size;
+                    if (progress < 0.9 && !lenient) {
                         throw new IOException("Unknown block at: " + pos);
                     }
-                    pos = in.length; // Exit loop
+                    img.corruptAt = pos;
+                    next = size; // Exit loop
+            }
+            if (next < 0) { // The block exceeds the input's end
+                if (!lenient) {
+                    throw new IOException("Image is truncated.");
+                }
+                img.truncatedAt = pos;
+                next = size; // Exit loop
+            }
+            pos = next;
+        }
+        if (frame != null && frame.data == null) { // Graphic control extension only
+            if (!lenient && !img.trailer) {
+                throw new IOException("Image is truncated.");
             }
+            img.frames.remove(img.frames.size() - 1); // Nothing to draw
         }
         return img;
     }
 
+    private static void checkCanvasSize(final Limits limits, final String what, final int w, final int h)
+            throws IOException {
+        if ((long) w * h > limits.maxCanvasPixels) {
+            throw new IOException(what + " of " + w + "x" + h + " pixels exceeds the limit of "
+                    + limits.maxCanvasPixels + " pixels");
+        }
+    }
+
+    private static void checkFrameCount(final Limits limits, final int frames) throws IOException {
+        if (frames > limits.maxFrames) {
+            throw new IOException("Image has more than " + limits.maxFrames + " frames");
+        }
+    }
+
     /**
      * @param is Image data as input stream. This method will read from the
-     *           input stream's current position. It will not reset the
-     *           position before reading and won't reset or close the stream
-     *           afterwards. Call these methods before and after calling this
-     *           method as needed.
+     *           input stream's current position up to the GIF trailer or the
+     *           end of the stream. It will not reset the position before
+     *           reading and won't reset or close the stream afterwards. Call
+     *           these methods before and after calling this method as needed.
      * @return A GifImage object exposing the properties of the GIF image.
      * @throws IOException If an I/O error occurs, the image violates the GIF
      *                     specification or the GIF is truncated.
      */
     public static GifImage read(final InputStream is) throws IOException {
-        final byte[] data = new byte[is.available()];
-        is.read(data, 0, data.length);
-        return read(data);
+        return new GifDecoder().decode(is);
+    }
+
+    /**
+     * @param is Image data as input stream. This method will read from the
+     *           input stream's current position. Frames are read from the
+     *           stream one at a time, when they are requested from the
+     *           returned object. The stream won't be closed.
+     * @return A GifStream to read the frames with, one after another. Each
+     * frame's image data is discarded once the frame has been drawn.
+     * @throws IOException If an I/O error occurs, the image violates the GIF
+     *                     specification or the GIF is truncated before the
+     *                     first frame.
+     */
+    public static GifStream stream(final InputStream is) throws IOException {
+        return new GifDecoder().decodeStream(is);
+    }
+
+    /**
+     * Like {@link #read(InputStream)}, but the returned image shares this
+     * decoder's buffers, and the stream is read within its limits.
+     *
+     * @param is Image data as input stream, read from its current position up
+     *           to the GIF trailer or the end of the stream, not closed
+     * @return A GifImage object exposing the properties of the GIF image.
+     * @throws IOException If an I/O error occurs, the image violates the GIF
+     *                     specification or the GIF is truncated.
+     */
+    public GifImage decode(final InputStream is) throws IOException {
+        final DecodeListener listener = this.listener;
+        final Object event = TRACER == null ? null : TRACER.beginParse();
+        final long start = listener == null ? 0 : System.nanoTime();
+        final GifStream stream = new GifStream(this, is, true);
+        stream.readAll();
+        final GifImage img = stream.getImage();
+        if (listener != null) {
+            listener.imageParsed(img, System.nanoTime() - start, stream.pos);
+        }
+        if (event != null) {
+            TRACER.endParse(event, img.w, img.h, img.frames.size(), stream.pos);
+        }
+        return img;
+    }
+
+    /**
+     * Like {@link #stream(InputStream)}, but the frames share this decoder's
+     * buffers, and the stream is read within its limits. The name differs
+     * as {@code stream(InputStream)} is taken by the static method.
+     *
+     * @param is Image data as input stream, read from its current position
+     *           frame by frame, not closed
+     * @return A GifStream to read the frames with, one after another. Each
+     * frame's image data is discarded once the frame has been drawn.
+     * @throws IOException If an I/O error occurs, the image violates the GIF
+     *                     specification or the GIF is truncated before the
+     *                     first frame.
+     */
+    public GifStream decodeStream(final InputStream is) throws IOException {
+        return new GifStream(this, is, false);
+    }
+
+    /**
+     * Reads and draws only the first frame, e.g. for a preview. Parsing stops
+     * after the first frame's image data, and the frame is drawn without
+     * copying it.
+     *
+     * @param in Raw image data as a byte[] array
+     * @return The first frame, or null if the GIF has no frames
+     * @throws IOException If the image violates the GIF specification or is truncated.
+     */
+    public static BufferedImage readFirstFrame(final byte[] in) throws IOException {
+        return new GifDecoder().decodeFirstFrame(in);
+    }
+
+    /**
+     * Reads and draws only the first frame, see {@link #readFirstFrame(byte[])}.
+     *
+     * @param path Path of a GIF file. The file is memory-mapped, so only the
+     *             part up to the end of the first frame is read.
+     * @return The first frame, or null if the GIF has no frames
+     * @throws IOException If an I/O error occurs, the image violates the GIF
+     *                     specification or is truncated.
+     */
+    public static BufferedImage readFirstFrame(final Path path) throws IOException {
+        return new GifDecoder().decodeFirstFrame(path);
+    }
+
+    /**
+     * Reads and draws only the first frame, see {@link #readFirstFrame(byte[])}.
+     *
+     * @param buffer Raw image data from the buffer's position to its limit.
+     *               The buffer's position and limit are left untouched.
+     * @return The first frame, or null if the GIF has no frames
+     * @throws IOException If the image violates the GIF specification or is truncated.
+     */
+    public static BufferedImage readFirstFrame(final ByteBuffer buffer) throws IOException {
+        return new GifDecoder().decodeFirstFrame(buffer);
+    }
+
+    /**
+     * Reads and draws only the first frame, see {@link #readFirstFrame(byte[])}.
+     *
+     * @param is Image data as input stream. This method will read from the
+     *           input stream's current position up to the end of the first
+     *           frame's image data. The stream won't be closed.
+     * @return The first frame, or null if the GIF has no frames
+     * @throws IOException If an I/O error occurs, the image violates the GIF
+     *                     specification or is truncated.
+     */
+    public static BufferedImage readFirstFrame(final InputStream is) throws IOException {
+        return new GifDecoder().decodeFirstFrame(is);
+    }
+
+    /**
+     * Like {@link #readFirstFrame(byte[])}, but within this decoder's limits,
+     * lenient mode and listener. The name differs as
+     * {@code readFirstFrame(byte[])} is taken by the static method.
+     *
+     * @param in Raw image data as a byte[] array
+     * @return The first frame, or null if the GIF has no frames
+     * @throws IOException           If the image violates the GIF
+     *                               specification or the decoder's limits, or
+     *                               is truncated.
+     * @throws CancellationException If the limits' timeout expired or the
+     *                               thread was interrupted while drawing
+     */
+    public BufferedImage decodeFirstFrame(final byte[] in) throws IOException {
+        return decodeFirstFrame(ByteBuffer.wrap(in));
+    }
+
+    /**
+     * Like {@link #readFirstFrame(Path)}, but within this decoder's limits,
+     * lenient mode and listener.
+     *
+     * @param path Path of a GIF file, memory-mapped
+     * @return The first frame, or null if the GIF has no frames
+     * @throws IOException           If an I/O error occurs, the image violates
+     *                               the GIF specification or the decoder's
+     *                               limits, or is truncated.
+     * @throws CancellationException If the limits' timeout expired or the
+     *                               thread was interrupted while drawing
+     */
+    public BufferedImage decodeFirstFrame(final Path path) throws IOException {
+        return decodeFirstFrame(map(path));
+    }
+
+    /**
+     * Like {@link #readFirstFrame(ByteBuffer)}, but within this decoder's
+     * limits, lenient mode and listener.
+     *
+     * @param buffer Raw image data from the buffer's position to its limit.
+     *               The buffer's position and limit are left untouched.
+     * @return The first frame, or null if the GIF has no frames
+     * @throws IOException           If the image violates the GIF
+     *                               specification or the decoder's limits, or
+     *                               is truncated.
+     * @throws CancellationException If the limits' timeout expired or the
+     *                               thread was interrupted while drawing
+     */
+    public BufferedImage decodeFirstFrame(final ByteBuffer buffer) throws IOException {
+        final DecodeListener listener = this.listener;
+        final Object event = TRACER == null ? null : TRACER.beginParse();
+        final long start = listener == null ? 0 : System.nanoTime();
+        final GifImage img = parse(buffer, true);
+        if (listener != null) {
+            listener.imageParsed(img, System.nanoTime() - start, buffer.remaining());
+        }
+        if (event != null) {
+            TRACER.endParse(event, img.w, img.h, img.frames.size(), buffer.remaining());
+        }
+        return img.drawFirstFrame();
+    }
+
+    /**
+     * Like {@link #readFirstFrame(InputStream)}, but within this decoder's
+     * limits, lenient mode and listener.
+     *
+     * @param is Image data as input stream, read from its current position up
+     *           to the end of the first frame's image data, not closed
+     * @return The first frame, or null if the GIF has no frames
+     * @throws IOException           If an I/O error occurs, the image violates
+     *                               the GIF specification or the decoder's
+     *                               limits, or is truncated.
+     * @throws CancellationException If the limits' timeout expired or the
+     *                               thread was interrupted while drawing
+     */
+    public BufferedImage decodeFirstFrame(final InputStream is) throws IOException {
+        final DecodeListener listener = this.listener;
+        final Object event = TRACER == null ? null : TRACER.beginParse();
+        final long start = listener == null ? 0 : System.nanoTime();
+        final GifStream stream = new GifStream(this, is, false);
+        stream.readFrame();
+        final GifImage img = stream.getImage();
+        if (listener != null) {
+            listener.imageParsed(img, System.nanoTime() - start, stream.pos);
+        }
+        if (event != null) {
+            TRACER.endParse(event, img.w, img.h, img.frames.size(), stream.pos);
+        }
+        return img.drawFirstFrame();
+    }
+
+    /**
+     * @return The file's content, memory-mapped
+     */
+    private static ByteBuffer map(final Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + size + " bytes");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /**
+     * @param in Raw image data as a byte[] array
+     * @return A summary of the GIF image's properties
+     * @throws IOException If the image violates the GIF specification or is truncated.
+     * @see #probe(ByteBuffer)
+     */
+    public static GifInfo probe(final byte[] in) throws IOException {
+        return probe(ByteBuffer.wrap(in));
+    }
+
+    /**
+     * @param path Path of a GIF file. The file is memory-mapped, only the
+     *             pages holding headers and sub-block sizes are read.
+     * @return A summary of the GIF image's properties
+     * @throws IOException If an I/O error occurs, the image violates the GIF
+     *                     specification or is truncated.
+     * @see #probe(ByteBuffer)
+     */
+    public static GifInfo probe(final Path path) throws IOException {
+        return probe(map(path));
+    }
+
+    /**
+     * Reads the properties of a GIF image without decoding it. Color tables
+     * and image data are skipped, only their size bytes are read. Frames are
+     * counted the same way as by {@link #read(ByteBuffer)}.
+     *
+     * @param buffer Raw image data from the buffer's position to its limit.
+     *               The buffer's position and limit are left untouched.
+     * @return A summary of the GIF image's properties
+     * @throws IOException If the image violates the GIF specification or is truncated.
+     */
+    public static GifInfo probe(final ByteBuffer buffer) throws IOException {
+        final ByteBuffer in = buffer.slice(); // Index 0 is the buffer's position
+        final int fileSize = in.limit();
+        final GifInfo info = new GifInfo();
+        boolean open = false; // True while the frame is open
+        int delay = 0; // Delay of the open frame
+        int control = 0; // Disposal method and transparency flag of the open frame
+        if (fileSize < 13) {
+            throw new IOException("Image is truncated.");
+        }
+        info.header = ascii(in, 0, 6);
+        if (!info.header.equals("GIF87a") && !info.header.equals("GIF89a")) {
+            throw new IOException("Invalid GIF header.");
+        }
+        info.w = in.get(6) & 0xFF | (in.get(7) & 0xFF) << 8; // 16 bit, LSB 1st
+        info.h = in.get(8) & 0xFF | (in.get(9) & 0xFF) << 8; // 16 bit
+        info.hasGlobColTbl = (in.get(10) & 0b10000000) != 0; // Bit 7
+        info.sizeOfGlobColTbl = 1 << (in.get(10) & 7) + 1; // 2^(N+1), see spec
+        info.bgColIndex = in.get(11) & 0xFF;
+        int pos = 13 + (info.hasGlobColTbl ? 3 * info.sizeOfGlobColTbl : 0);
+        if (pos > fileSize) {
+            throw new IOException("Image is truncated.");
+        }
+        while (pos < fileSize) {
+            final int block = in.get(pos) & 0xFF;
+            switch (block) {
+                case 0x21: // Extension introducer
+                    // All extensions consist of sub-blocks after the label
+                    final int end = pos + 1 < fileSize ? skipSubBlocks(in, pos + 2) : -1;
+                    if (end < 0) {
+                        throw new IOException("Image is truncated.");
+                    }
+                    switch (in.get(pos + 1) & 0xFF) {
+                        case 0xFF: // Application extension
+                            if (pos + 17 < end && isLoopExtension(ascii(in, pos + 3, 8))
+                                    && (in.get(pos + 14) & 0xFF) == 3) {
+                                info.repetitions = in.get(pos + 16) & 0xFF | (in.get(pos + 17) & 0xFF) << 8;
+                            }
+                            pos = end;
+                            break;
+                        case 0xFE: // Comment extension
+                            pos = end;
+                            break;
+                        case 0x01: // Plain text extension
+                            if (open) { // Its graphic control extension, no frame
+                                info.removeLastFrame();
+                                open = false;
+                            }
+                            pos = end;
+                            break;
+                        case 0xF9: // Graphic control extension
+                            if (pos + 8 > fileSize) {
+                                throw new IOException("Image is truncated.");
+                            }
+                            if (!open) {
+                                info.addFrame();
+                                open = true;
+                            }
+                            final int packed = in.get(pos + 3);
+                            control = (packed & 0b00011100) >>> 2 // Bits 0-2: disposal method
+                                    | (packed & 1) << 4; // Bit 4: transparency flag
+                            delay = in.get(pos + 4) & 0xFF | (in.get(pos + 5) & 0xFF) << 8; // 16 bit LSB
+                            info.setLastFrame(0, 0, 0, 0, delay, control);
+                            pos += 8;
+                            break;
+                        default:
+                            throw new IOException("Unknown extension at " + pos);
+                    }
+                    break;
+                case 0x2C: // Image descriptor
+                    if (pos + 10 > fileSize) {
+                        throw new IOException("Image is truncated.");
+                    }
+                    if (!open) {
+                        info.addFrame();
+                        delay = control = 0;
+                    }
+                    final int packed = in.get(pos + 9);
+                    final int sizeOfLocColTbl = (packed & 0b10000000) != 0 ? 1 << (packed & 7) + 1 : 0;
+                    info.setLastFrame(in.get(pos + 1) & 0xFF | (in.get(pos + 2) & 0xFF) << 8, // Left
+                            in.get(pos + 3) & 0xFF | (in.get(pos + 4) & 0xFF) << 8, // Top
+                            in.get(pos + 5) & 0xFF | (in.get(pos + 6) & 0xFF) << 8, // Width
+                            in.get(pos + 7) & 0xFF | (in.get(pos + 8) & 0xFF) << 8, // Height
+                            delay, control
+                                    | (packed & 0b01000000) >>> 3 // Bit 3: interlace flag
+                                    | sizeOfLocColTbl << 8); // Bits 8-16
+                    pos += 10 + 3 * sizeOfLocColTbl;
+                    if (pos >= fileSize) { // No LZW minimum code size
+                        throw new IOException("Image is truncated.");
+                    }
+                    if ((in.get(pos) & 0xFF) > MAX_MIN_CODE_SIZE) {
+                        throw new IOException("Invalid LZW minimum code size at " + pos);
+                    }
+                    final int dataEnd = skipSubBlocks(in, pos + 1);
+                    pos = dataEnd < 0 ? fileSize : dataEnd; // Image data is read as far as it goes
+                    open = false; // End of current frame
+                    break;
+                case 0x3B: // GIF Trailer
+                    if (open) { // Graphic control extension only
+                        info.removeLastFrame();
+                    }
+                    return info.finish(); // Found trailer, finished reading.
+                default:
+                    // Unknown block, same strategy as read(ByteBuffer)
+                    final double progress = 1.0 * pos / fileSize;
+                    if (progress < 0.9) {
+                        throw new IOException("Unknown block at: " + pos);
+                    }
+                    pos = fileSize; // Exit loop
+            }
+        }
+        if (open) { // Graphic control extension only
+            throw new IOException("Image is truncated.");
+        }
+        return info.finish();
     }
 
     /**
@@ -486,36 +3497,58 @@ public final class GifDecoder {
      * @param i   Index of the first byte of the application extension
      * @return Index of the first byte after this extension
      */
-    static int readAppExt(final GifImage img, final byte[] in, int i) {
-        img.appId = new String(in, i + 3, 8); // should be "NETSCAPE"
-        img.appAuthCode = new String(in, i + 11, 3); // should be "2.0"
+    static int readAppExt(final GifImage img, final ByteBuffer in, int i) {
+        img.appId = ascii(in, i + 3, 8); // should be "NETSCAPE"
+        img.appAuthCode = ascii(in, i + 11, 3); // should be "2.0"
         i += 14; // Go to sub-block size, it's value should be 3
-        final int subBlockSize = in[i] & 0xFF;
+        final int subBlockSize = in.get(i) & 0xFF;
         // The only app extension widely used is NETSCAPE, it's got 3 data bytes
-        if (subBlockSize == 3) {
-            // in[i+1] should have value 01, in[i+5] should be block terminator
-            img.repetitions = in[i + 2] & 0xFF | in[i + 3] & 0xFF << 8; // Short
+        if (subBlockSize == 3 && isLoopExtension(img.appId)) {
+            // in.get(i+1) should have value 01, in.get(i+5) should be block terminator
+            img.repetitions = in.get(i + 2) & 0xFF | (in.get(i + 3) & 0xFF) << 8; // Short
             return i + 5;
         } // Skip unknown application extensions
-        while ((in[i] & 0xFF) != 0) { // While sub-block size != 0
-            i += (in[i] & 0xFF) + 1; // Skip to next sub-block
+        while ((in.get(i) & 0xFF) != 0) { // While sub-block size != 0
+            i += (in.get(i) & 0xFF) + 1; // Skip to next sub-block
         }
         return i + 1;
     }
 
+    /**
+     * @param appId Application identifier of an application extension
+     * @return True if the extension holds the number of loops
+     */
+    static boolean isLoopExtension(final String appId) {
+        return appId.equals("NETSCAPE") || appId.equals("ANIMEXTS");
+    }
+
+    /**
+     * @param in Raw data
+     * @param i  Index of the first character
+     * @param n  Number of characters
+     * @return The characters as a String, one byte per character
+     */
+    static String ascii(final ByteBuffer in, final int i, final int n) {
+        final char[] chars = new char[n];
+        for (int c = 0; c < n; c++) {
+            chars[c] = (char) (in.get(i + c) & 0xFF);
+        }
+        return new String(chars);
+    }
+
     /**
      * @param in     Raw data
      * @param colors Pre-initialized target array to store ARGB colors
      * @param i      Index of the color table's first byte
      * @return Index of the first byte after the color table
      */
-    static int readColTbl(final byte[] in, final int[] colors, int i) {
+    static int readColTbl(final ByteBuffer in, final int[] colors, int i) {
         final int numColors = colors.length;
         for (int c = 0; c < numColors; c++) {
             final int a = 0xFF; // Alpha 255 (opaque)
-            final int r = in[i++] & 0xFF; // 1st byte is red
-            final int g = in[i++] & 0xFF; // 2nd byte is green
-            final int b = in[i++] & 0xFF; // 3rd byte is blue
+            final int r = in.get(i++) & 0xFF; // 1st byte is red
+            final int g = in.get(i++) & 0xFF; // 2nd byte is green
+            final int b = in.get(i++) & 0xFF; // 3rd byte is blue
             colors[c] = ((a << 8 | r) << 8 | g) << 8 | b;
         }
         return i;
@@ -527,11 +3560,11 @@ public final class GifDecoder {
      * @param i  Index of the extension introducer
      * @return Index of the first byte after this block
      */
-    static int readGraphicControlExt(final GifFrame fr, final byte[] in, final int i) {
-        fr.disposalMethod = (in[i + 3] & 0b00011100) >>> 2; // Bits 4-2
-        fr.transpColFlag = (in[i + 3] & 1) == 1; // Bit 0
-        fr.delay = in[i + 4] & 0xFF | (in[i + 5] & 0xFF) << 8; // 16 bit LSB
-        fr.transpColIndex = in[i + 6] & 0xFF; // Byte 6
+    static int readGraphicControlExt(final GifFrame fr, final ByteBuffer in, final int i) {
+        fr.disposalMethod = (in.get(i + 3) & 0b00011100) >>> 2; // Bits 4-2
+        fr.transpColFlag = (in.get(i + 3) & 1) == 1; // Bit 0
+        fr.delay = in.get(i + 4) & 0xFF | (in.get(i + 5) & 0xFF) << 8; // 16 bit LSB
+        fr.transpColIndex = in.get(i + 6) & 0xFF; // Byte 6
         return i + 8; // Skipped byte 7 (blockTerminator), as it's always 0x00
     }
 
@@ -541,11 +3574,11 @@ public final class GifDecoder {
      * @return Index of the first byte after this block
      * @throws IOException If the GIF header/trailer is missing, incomplete or unknown
      */
-    static int readHeader(final byte[] in, final GifImage img) throws IOException {
-        if (in.length < 6) { // Check first 6 bytes
+    static int readHeader(final ByteBuffer in, final GifImage img) throws IOException {
+        if (in.limit() < 6) { // Check first 6 bytes
             throw new IOException("Image is truncated.");
         }
-        img.header = new String(in, 0, 6);
+        img.header = ascii(in, 0, 6);
         if (!img.header.equals("GIF87a") && !img.header.equals("GIF89a")) {
             throw new IOException("Invalid GIF header.");
         }
@@ -556,60 +3589,25 @@ public final class GifDecoder {
      * @param fr The GIF frame to whom this image descriptor belongs
      * @param in Raw data
      * @param i  Index of the first byte of this block, i.e. the minCodeSize
-     * @return Byte index
+     * @return Index of the first byte after this block, or -1 if the
+     * sub-blocks exceed the input's end
+     */
+    static int readImgData(final GifFrame fr, final ByteBuffer in, int i) {
+        setCodeSizes(fr, in.get(i++) & 0xFF); // Read code size, go to block
+        fr.data = in; // The image data is read from the input when drawing
+        fr.dataPos = i;
+        return skipSubBlocks(in, i);
+    }
+
+    /**
+     * @param fr          The GIF frame to whom the image data belongs
+     * @param minCodeSize The LZW minimum code size
      */
-    static int readImgData(final GifFrame fr, final byte[] in, int i) {
-        final int fileSize = in.length;
-        final int minCodeSize = in[i++] & 0xFF; // Read code size, go to block
+    static void setCodeSizes(final GifFrame fr, final int minCodeSize) {
         final int clearCode = 1 << minCodeSize; // CLEAR = 2^minCodeSize
         fr.firstCodeSize = minCodeSize + 1; // Add 1 bit for CLEAR and EOI
         fr.clearCode = clearCode;
         fr.endOfInfoCode = clearCode + 1;
-        final int imgDataSize = readImgDataSize(in, i);
-        final byte[] imgData = new byte[imgDataSize + 2];
-        int imgDataPos = 0;
-        int subBlockSize = in[i] & 0xFF;
-        while (subBlockSize > 0) { // While block has data
-            try { // Next line may throw exception if sub-block size is fake
-                final int nextSubBlockSizePos = i + subBlockSize + 1;
-                final int nextSubBlockSize = in[nextSubBlockSizePos] & 0xFF;
-                arraycopy(in, i + 1, imgData, imgDataPos, subBlockSize);
-                imgDataPos += subBlockSize; // Move output data position
-                i = nextSubBlockSizePos; // Move to next sub-block size
-                subBlockSize = nextSubBlockSize;
-            } catch (final Exception e) {
-                // Sub-block exceeds file end, only use remaining bytes
-                subBlockSize = fileSize - i - 1; // Remaining bytes
-                arraycopy(in, i + 1, imgData, imgDataPos, subBlockSize);
-                imgDataPos += subBlockSize; // Move output data position
-                i += subBlockSize + 1; // Move to next sub-block size
-                break;
-            }
-        }
-        fr.data = imgData; // Holds LZW encoded data
-        i++; // Skip last sub-block size, should be 0
-        return i;
-    }
-
-    static int readImgDataSize(final byte[] in, int i) {
-        final int fileSize = in.length;
-        int imgDataPos = 0;
-        int subBlockSize = in[i] & 0xFF;
-        while (subBlockSize > 0) { // While block has data
-            try { // Next line may throw exception if sub-block size is fake
-                final int nextSubBlockSizePos = i + subBlockSize + 1;
-                final int nextSubBlockSize = in[nextSubBlockSizePos] & 0xFF;
-                imgDataPos += subBlockSize; // Move output data position
-                i = nextSubBlockSizePos; // Move to next sub-block size
-                subBlockSize = nextSubBlockSize;
-            } catch (final Exception e) {
-                // Sub-block exceeds file end, only use remaining bytes
-                subBlockSize = fileSize - i - 1; // Remaining bytes
-                imgDataPos += subBlockSize; // Move output data position
-                break;
-            }
-        }
-        return imgDataPos;
     }
 
     /**
@@ -618,13 +3616,13 @@ public final class GifDecoder {
      * @param i  Index of the image separator, i.e. the first block byte
      * @return Index of the first byte after this block
      */
-    static int readImgDescr(final GifFrame fr, final byte[] in, int i) {
-        fr.x = in[++i] & 0xFF | (in[++i] & 0xFF) << 8; // Byte 1-2: left
-        fr.y = in[++i] & 0xFF | (in[++i] & 0xFF) << 8; // Byte 3-4: top
-        fr.w = in[++i] & 0xFF | (in[++i] & 0xFF) << 8; // Byte 5-6: width
-        fr.h = in[++i] & 0xFF | (in[++i] & 0xFF) << 8; // Byte 7-8: height
+    static int readImgDescr(final GifFrame fr, final ByteBuffer in, int i) {
+        fr.x = in.get(++i) & 0xFF | (in.get(++i) & 0xFF) << 8; // Byte 1-2: left
+        fr.y = in.get(++i) & 0xFF | (in.get(++i) & 0xFF) << 8; // Byte 3-4: top
+        fr.w = in.get(++i) & 0xFF | (in.get(++i) & 0xFF) << 8; // Byte 5-6: width
+        fr.h = in.get(++i) & 0xFF | (in.get(++i) & 0xFF) << 8; // Byte 7-8: height
         fr.wh = fr.w * fr.h;
-        final byte b = in[++i]; // Byte 9 is a packed byte
+        final byte b = in.get(++i); // Byte 9 is a packed byte
         fr.hasLocColTbl = (b & 0b10000000) >>> 7 == 1; // Bit 7
         fr.interlaceFlag = (b & 0b01000000) >>> 6 == 1; // Bit 6
         fr.sortFlag = (b & 0b00100000) >>> 5 == 1; // Bit 5
@@ -638,34 +3636,37 @@ public final class GifDecoder {
      * @param i   Start index of this block.
      * @return Index of the first byte after this block.
      */
-    static int readLogicalScreenDescriptor(final GifImage img, final byte[] in, final int i) {
-        img.w = in[i] & 0xFF | (in[i + 1] & 0xFF) << 8; // 16 bit, LSB 1st
-        img.h = in[i + 2] & 0xFF | (in[i + 3] & 0xFF) << 8; // 16 bit
+    static int readLogicalScreenDescriptor(final GifImage img, final ByteBuffer in, final int i) {
+        img.w = in.get(i) & 0xFF | (in.get(i + 1) & 0xFF) << 8; // 16 bit, LSB 1st
+        img.h = in.get(i + 2) & 0xFF | (in.get(i + 3) & 0xFF) << 8; // 16 bit
         img.wh = img.w * img.h;
-        final byte b = in[i + 4]; // Byte 4 is a packed byte
+        final byte b = in.get(i + 4); // Byte 4 is a packed byte
         img.hasGlobColTbl = (b & 0b10000000) >>> 7 == 1; // Bit 7
         final int colResPower = ((b & 0b01110000) >>> 4) + 1; // Bits 6-4
         img.colorResolution = 1 << colResPower; // 2^(N+1), As per the spec
         img.sortFlag = (b & 0b00001000) >>> 3 == 1; // Bit 3
         final int globColTblSizePower = (b & 7) + 1; // Bits 0-2
         img.sizeOfGlobColTbl = 1 << globColTblSizePower; // 2^(N+1), see spec
-        img.bgColIndex = in[i + 5] & 0xFF; // 1 Byte
-        img.pxAspectRatio = in[i + 6] & 0xFF; // 1 Byte
+        img.bgColIndex = in.get(i + 5) & 0xFF; // 1 Byte
+        img.pxAspectRatio = in.get(i + 6) & 0xFF; // 1 Byte
         return i + 7;
     }
 
     /**
-     * @param in  Raw data
-     * @param pos Index of the extension introducer
-     * @return Index of the first byte after this block
+     * @param in Raw data
+     * @param i  Index of the first sub-block size
+     * @return Index of the first byte after the block terminator, or -1 if
+     * the sub-blocks exceed the input's end
      */
-    static int readTextExtension(final byte[] in, final int pos) {
-        int i = pos + 2; // Skip extension introducer and label
-        int subBlockSize = in[i++] & 0xFF;
-        while (subBlockSize != 0 && i < in.length) {
-            i += subBlockSize;
-            subBlockSize = in[i++] & 0xFF;
+    static int skipSubBlocks(final ByteBuffer in, int i) {
+        final int fileSize = in.limit();
+        while (i < fileSize) {
+            final int subBlockSize = in.get(i) & 0xFF;
+            i += subBlockSize + 1; // Skip to next sub-block size
+            if (subBlockSize == 0) {
+                return i; // Skipped the block terminator
+            }
         }
-        return i;
+        return -1;
     }
 }
@@ -1,15 +1,70 @@
 package at.dhyan.open_imaging.test;
 
 import at.dhyan.open_imaging.GifDecoder;
+import at.dhyan.open_imaging.GifDecoder.BatchDecoder;
+import at.dhyan.open_imaging.GifDecoder.CachePolicy;
+import at.dhyan.open_imaging.GifDecoder.DecodeListener;
+import at.dhyan.open_imaging.GifDecoder.Diagnostics;
+import at.dhyan.open_imaging.GifDecoder.FrameDelta;
+import at.dhyan.open_imaging.GifDecoder.FrameMetrics;
 import at.dhyan.open_imaging.GifDecoder.GifImage;
+import at.dhyan.open_imaging.GifDecoder.GifInfo;
+import at.dhyan.open_imaging.GifDecoder.Limits;
+import at.dhyan.open_imaging.GifDecoder.GifImage.ScaledFrames;
+import at.dhyan.open_imaging.GifDecoder.GifStream;
 import org.junit.Test;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 public class GifDecoderOpenImagingTest extends GifDecoderTest {
+    private static final String ALLOCATION_BUDGETS = "src/test/resources/allocation-budgets.properties";
+    private static final String REFERENCE_FRAMES = "src/test/resources/reference-frames.properties";
+    // Kevin Weiner's decoder fills disposed areas with the background color, or with opaque black if that is the
+    // transparent color. This decoder leaves them transparent, see "Quirks" in the README.
+    private static final List<String> BACKGROUND_QUIRK = Arrays.asList("dispose_background_1", "dispose_background_2");
 
     @Test
     public void testForCorrectMetadata() throws IOException {
@@ -21,6 +76,799 @@ public class GifDecoderOpenImagingTest extends GifDecoderTest {
         }
     }
 
+    /**
+     * Compares the frames with Kevin Weiner's decoder, an independent
+     * implementation, or with reference checksums where it can't be used.
+     * The other tests compare with the frames read here.
+     */
+    @Test
+    public void testMatchesReferenceDecoder() throws IOException {
+        final Properties checksums = new Properties();
+        try (Reader in = Files.newBufferedReader(Paths.get(REFERENCE_FRAMES))) {
+            checksums.load(in);
+        }
+        for (TestImage img : IMAGES.values()) {
+            final BufferedImage[] frames = readImageFrames(img);
+            final String sums = checksums.getProperty(img.name);
+            if (sums != null) {
+                final String[] expected = sums.split(",");
+                assertEquals(img.name + ".gif, frames", expected.length, frames.length);
+                for (int i = 0; i < frames.length; i++) {
+                    assertEquals(img.name + ".gif, frame " + i, expected[i], checksum(frames[i]));
+                }
+                continue;
+            }
+            final com.fmsware.GifDecoder reference = new com.fmsware.GifDecoder();
+            assertEquals(img.name + ".gif, reference status", com.fmsware.GifDecoder.STATUS_OK,
+                    reference.read(new ByteArrayInputStream(img.data)));
+            assertEquals(img.name + ".gif, frames", reference.getFrameCount(), frames.length);
+            final boolean quirk = BACKGROUND_QUIRK.contains(img.name);
+            final int background = GifDecoder.read(img.data).getBackgroundColor();
+            for (int i = 0; i < frames.length; i++) {
+                final int w = img.width, h = img.height;
+                final int[] expected = reference.getFrame(i).getRGB(0, 0, w, h, null, 0, w);
+                final int[] actual = frames[i].getRGB(0, 0, w, h, null, 0, w);
+                for (int px = 0; px < expected.length; px++) {
+                    if (actual[px] != expected[px] && !(quirk && actual[px] == 0
+                            && (expected[px] == background || expected[px] == 0xFF000000))) {
+                        fail(img.name + ".gif, frame " + i + " at " + px % w + "," + px / w + ": expected "
+                                + Integer.toHexString(expected[px]) + ", was " + Integer.toHexString(actual[px]));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * All frames after the first of dispose_prev restore the canvas below
+     * them, so each one shows the first frame plus only its own pixels. The
+     * frames are drawn from ImageIO's undisposed frames.
+     */
+    @Test
+    public void testRestorePreviousDisposal() throws IOException {
+        final TestImage img = IMAGES.get("dispose_prev");
+        final GifInfo info = GifDecoder.probe(img.data);
+        final ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(img.data))) {
+            reader.setInput(in);
+            final GifImage gifImage = GifDecoder.read(img.data);
+            assertEquals("frames", reader.getNumImages(true), gifImage.getFrameCount());
+            BufferedImage first = null;
+            for (int i = 0; i < gifImage.getFrameCount(); i++) {
+                final IIOMetadataNode descriptor = (IIOMetadataNode) ((IIOMetadataNode) reader.getImageMetadata(i)
+                        .getAsTree("javax_imageio_gif_image_1.0")).getElementsByTagName("ImageDescriptor").item(0);
+                final BufferedImage expected = new BufferedImage(img.width, img.height, BufferedImage.TYPE_INT_ARGB);
+                final Graphics2D g = expected.createGraphics();
+                g.drawImage(first, 0, 0, null);
+                g.drawImage(reader.read(i), Integer.parseInt(descriptor.getAttribute("imageLeftPosition")),
+                        Integer.parseInt(descriptor.getAttribute("imageTopPosition")), null);
+                g.dispose();
+                assertEquals("frame " + i + " disposal", i == 0 ? 1 : 3, info.getDisposalMethod(i));
+                assertSamePixels(img.name + ".gif, frame " + i, expected, gifImage.getFrame(i));
+                first = first == null ? expected : first;
+            }
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Encoders may start the image data with any number of CLEAR codes, or
+     * repeat them within. Codes are 3 bits wide, CLEAR is 4 and EOI is 5.
+     */
+    @Test
+    public void testRepeatedClearCodes() throws IOException {
+        final int[][] streams = {{4, 1, 2, 5}, {1, 2, 5}, {4, 4, 1, 2, 5}, {4, 4, 4, 1, 2, 5}, {4, 1, 4, 4, 2, 5}};
+        for (int[] codes : streams) {
+            final String message = "Codes " + Arrays.toString(codes);
+            final BufferedImage frame = GifDecoder.read(gifWithCodes(codes)).getFrame(0);
+            assertEquals(message + ", pixel 0", 0xFFFF0000, frame.getRGB(0, 0));
+            assertEquals(message + ", pixel 1", 0xFF00FF00, frame.getRGB(1, 0));
+        }
+    }
+
+    /**
+     * A graphic control extension before a plain text extension or the
+     * trailer belongs to no frame, so all paths skip it.
+     */
+    @Test
+    public void testGraphicControlWithoutFrame() throws IOException {
+        final byte[] frame = gifWithCodes(4, 1, 2, 5);
+        final byte[] control = {0x21, (byte) 0xF9, 4, 0, 0, 0, 0, 0};
+        final byte[] text = {0x21, 0x01, 12, 0, 0, 0, 0, 2, 0, 1, 0, 2, 1, 1, 0, 2, 'h', 'i', 0};
+        final ByteBuffer gif = ByteBuffer.allocate(frame.length + 2 * control.length + text.length);
+        gif.put(frame, 0, 25).put(control).put(text).put(frame, 25, frame.length - 26).put(control).put((byte) 0x3B);
+        final byte[] data = gif.array();
+        assertEquals("byte[], frames", 1, GifDecoder.read(data).getFrameCount());
+        assertEquals("stream, frames", 1, GifDecoder.read(new ByteArrayInputStream(data)).getFrameCount());
+        assertEquals("probe, frames", 1, GifDecoder.probe(data).getFrameCount());
+        assertEquals("first frame", 0xFFFF0000, GifDecoder.readFirstFrame(data).getRGB(0, 0));
+    }
+
+    @Test
+    public void testProbe() throws IOException {
+        for (TestImage img : IMAGES.values()) {
+            final GifImage gifImage = GifDecoder.read(img.data);
+            final GifInfo info = GifDecoder.probe(img.data);
+            assertEquals(img.name + ".gif, width", img.width, info.getWidth());
+            assertEquals(img.name + ".gif, height", img.height, info.getHeight());
+            assertEquals(img.name + ".gif, frames", img.frames, info.getFrameCount());
+            assertEquals(img.name + ".gif, repetitions", gifImage.repetitions, info.getRepetitions());
+            int duration = 0;
+            for (int i = 0; i < info.getFrameCount(); i++) {
+                assertEquals(img.name + ".gif, start of frame " + i, duration, info.getStartTime(i));
+                assertEquals(img.name + ".gif, delay of frame " + i, gifImage.getDelay(i), info.getDelay(i));
+                duration += info.getDelay(i);
+            }
+            assertEquals(img.name + ".gif, duration", duration, info.getDuration());
+        }
+        // Truncated input fails like read(byte[]), or yields the same frames
+        for (String name : Arrays.asList("sample", "cat", "hands")) {
+            final TestImage img = IMAGES.get(name);
+            for (int length = 0; length < img.data.length; length += img.data.length > 10000 ? 97 : 1) {
+                final String message = img.name + ".gif cut at " + length;
+                final byte[] data = Arrays.copyOf(img.data, length);
+                String readError = null, probeError = null;
+                int readFrames = -1, probeFrames = -1;
+                try {
+                    readFrames = GifDecoder.read(data).getFrameCount();
+                } catch (final IOException e) {
+                    readError = e.getMessage();
+                }
+                try {
+                    probeFrames = GifDecoder.probe(data).getFrameCount();
+                } catch (final IOException e) {
+                    probeError = e.getMessage();
+                }
+                assertEquals(message, readError, probeError);
+                assertEquals(message + ", frames", readFrames, probeFrames);
+            }
+        }
+    }
+
+    @Test
+    public void testRandomAccessWithCheckpoints() throws IOException {
+        for (TestImage img : IMAGES.values()) {
+            final BufferedImage[] expected = readImageFrames(img);
+            final GifImage gifImage = GifDecoder.read(img.data);
+            gifImage.setCheckpointInterval(4);
+            for (int i = expected.length - 1; i >= 0; i--) {
+                assertSamePixels(img.name + ".gif, frame " + i, expected[i], gifImage.getFrame(i));
+            }
+        }
+    }
+
+    @Test
+    public void testRandomAccessWithBoundedCache() throws IOException {
+        final CachePolicy[] policies = {CachePolicy.NONE, CachePolicy.SOFT, CachePolicy.maxFrames(3),
+                CachePolicy.maxBytes(1 << 20)};
+        for (TestImage img : IMAGES_SUBSET.values()) {
+            final BufferedImage[] expected = readImageFrames(img);
+            for (CachePolicy policy : policies) {
+                final GifImage gifImage = GifDecoder.read(img.data);
+                gifImage.setCachePolicy(policy);
+                for (int n = 0; n < 2 * expected.length; n++) {
+                    final int i = (n * 7) % expected.length;
+                    assertSamePixels(img.name + ".gif, frame " + i, expected[i], gifImage.getFrame(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReusedDecoder() throws IOException {
+        final GifDecoder[] decoders = {new GifDecoder(), new GifDecoder(1024)};
+        for (GifDecoder decoder : decoders) {
+            for (int n = 0; n < 2; n++) {
+                for (TestImage img : IMAGES.values()) {
+                    final BufferedImage[] expected = readImageFrames(img);
+                    final GifImage gifImage = decoder.decode(img.data);
+                    for (int i = 0; i < expected.length; i++) {
+                        assertSamePixels(img.name + ".gif, frame " + i, expected[i], gifImage.getFrame(i));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDecodeListener() throws IOException {
+        final List<FrameMetrics> drawn = new ArrayList<>();
+        final long[] parsed = new long[1];
+        final GifDecoder decoder = new GifDecoder();
+        decoder.setListener(new DecodeListener() {
+            @Override
+            public void imageParsed(final GifImage image, final long parseNanos, final long compressedBytes) {
+                parsed[0] = compressedBytes;
+            }
+
+            @Override
+            public void frameDrawn(final GifImage image, final FrameMetrics metrics) {
+                drawn.add(metrics);
+            }
+        });
+        for (TestImage img : IMAGES.values()) {
+            drawn.clear();
+            final BufferedImage[] expected = readImageFrames(img);
+            final GifImage gifImage = decoder.decode(img.data);
+            assertEquals(img.name + ".gif, parsed bytes", img.data.length, parsed[0]);
+            for (int i = 0; i < expected.length; i++) {
+                assertSamePixels(img.name + ".gif, frame " + i, expected[i], gifImage.getFrame(i));
+            }
+            assertEquals(img.name + ".gif, frames", expected.length, drawn.size());
+            for (int i = 0; i < expected.length; i++) {
+                final FrameMetrics metrics = drawn.get(i);
+                final String message = img.name + ".gif, frame " + i;
+                assertEquals(message, i, metrics.getFrameIndex());
+                assertTrue(message, metrics.getCompressedBytes() > 0 && metrics.getCompressedBytes() < img.data.length);
+                assertTrue(message, metrics.getCodesRead() >= 2 && metrics.getClearCodes() >= 1);
+                assertTrue(message, metrics.getDecodeNanos() >= 0 && metrics.getCompositeNanos() >= 0);
+            }
+        }
+        decoder.setListener(null);
+        drawn.clear();
+        decoder.decode(IMAGES.get("dance").data).getFrame(0);
+        assertEquals("frames drawn without listener", 0, drawn.size());
+    }
+
+    /**
+     * Flight Recorder is used reflectively, so that the tests also compile and
+     * run on a JDK without it. They are skipped there.
+     */
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        final Class<?> recordingClass, recordingFileClass, recordedObjectClass;
+        try {
+            recordingClass = Class.forName("jdk.jfr.Recording");
+            recordingFileClass = Class.forName("jdk.jfr.consumer.RecordingFile");
+            recordedObjectClass = Class.forName("jdk.jfr.consumer.RecordedObject");
+        } catch (ClassNotFoundException e) {
+            assumeTrue("No Flight Recorder", false);
+            return;
+        }
+        final Method getInt = recordedObjectClass.getMethod("getInt", String.class);
+        final Method getBoolean = recordedObjectClass.getMethod("getBoolean", String.class);
+        final String[] names = {"GifParse", "GifDecode", "GifDrawFrame"};
+        final Map<String, Integer> counts = new HashMap<>();
+        final Path file = Files.createTempFile("gif-decoder", ".jfr");
+        int frames = 0, interlaced = 0, interlacedEvents = 0;
+        try (AutoCloseable recording = (AutoCloseable) recordingClass.getConstructor().newInstance()) {
+            for (String name : names) {
+                recordingClass.getMethod("enable", String.class).invoke(recording, "at.dhyan.open_imaging." + name);
+            }
+            recordingClass.getMethod("start").invoke(recording);
+            for (TestImage img : IMAGES.values()) {
+                final GifImage gifImage = GifDecoder.read(img.data);
+                for (int i = 0; i < gifImage.getFrameCount(); i++) {
+                    gifImage.getFrame(i);
+                }
+                frames += gifImage.getFrameCount();
+                interlaced += img.name.startsWith("hand") ? 1 : 0;
+            }
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", Path.class).invoke(recording, file);
+            final Method readAllEvents = recordingFileClass.getMethod("readAllEvents", Path.class);
+            for (Object event : (List<?>) readAllEvents.invoke(null, file)) {
+                final Object type = event.getClass().getMethod("getEventType").invoke(event);
+                final String name = (String) type.getClass().getMethod("getName").invoke(type);
+                counts.merge(name, 1, Integer::sum);
+                if (name.endsWith("GifDrawFrame")) {
+                    assertTrue("frame width", (Integer) getInt.invoke(event, "width") > 0);
+                } else if (name.endsWith("GifDecode") && (Boolean) getBoolean.invoke(event, "interlaced")) {
+                    interlacedEvents++;
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+        assertEquals("parse events", IMAGES.size(), (int) counts.get("at.dhyan.open_imaging.GifParse"));
+        assertEquals("decode events", frames, (int) counts.get("at.dhyan.open_imaging.GifDecode"));
+        assertEquals("draw events", frames, (int) counts.get("at.dhyan.open_imaging.GifDrawFrame"));
+        assertTrue("interlaced decode events", interlaced == 0 || interlacedEvents > 0);
+    }
+
+    @Test
+    public void testLimits() throws IOException {
+        final TestImage img = IMAGES.get("hands");
+        final Limits[] exceeded = {Limits.NONE.withMaxCanvasPixels(img.width * img.height - 1),
+                Limits.NONE.withMaxFrames(img.frames - 1),
+                Limits.NONE.withMaxTotalPixels((long) img.width * img.height * img.frames / 2),
+                Limits.NONE.withMaxCompressedBytes(img.data.length - 1)};
+        final GifDecoder decoder = new GifDecoder();
+        for (Limits limits : exceeded) {
+            decoder.setLimits(limits);
+            assertThrows(IOException.class, () -> decoder.decode(img.data));
+            assertThrows(IOException.class, () -> decoder.decode(new ByteArrayInputStream(img.data)));
+            assertThrows(IOException.class, () -> {
+                final GifStream stream = decoder.decodeStream(new ByteArrayInputStream(img.data));
+                while (stream.nextFrame() != null) {
+                    // Read all frames
+                }
+            });
+        }
+        // A few bytes declaring a huge canvas are rejected before anything is allocated
+        final byte[] huge = {'G', 'I', 'F', '8', '9', 'a', -1, -1, -1, -1, 0, 0, 0, 0x3B};
+        decoder.setLimits(Limits.NONE.withMaxCanvasPixels(1 << 24));
+        assertThrows(IOException.class, () -> decoder.decode(huge));
+        assertThrows(IOException.class, () -> decoder.decode(new ByteArrayInputStream(huge)));
+
+        // Requests are aborted when they take too long or are interrupted, later requests still work
+        final BufferedImage[] expected = readImageFrames(img);
+        decoder.setLimits(Limits.NONE.withMaxCanvasPixels(img.width * img.height).withMaxFrames(img.frames)
+                .withMaxTotalPixels((long) img.width * img.height * img.frames)
+                .withMaxCompressedBytes(img.data.length));
+        final GifImage gifImage = decoder.decode(img.data);
+        gifImage.setCachePolicy(CachePolicy.NONE);
+        assertSamePixels(img.name + ".gif, frame 3", expected[3], gifImage.getFrame(3));
+        Thread.currentThread().interrupt();
+        try {
+            assertThrows(CancellationException.class, () -> gifImage.getFrame(expected.length - 1));
+            assertThrows(InterruptedIOException.class, () -> decoder.decode(img.data));
+            assertThrows(InterruptedIOException.class, () -> decoder.decode(new ByteArrayInputStream(img.data)));
+        } finally {
+            Thread.interrupted();
+        }
+        decoder.setLimits(Limits.NONE.withTimeout(1, TimeUnit.NANOSECONDS));
+        assertThrows(CancellationException.class, () -> gifImage.getFrame(expected.length - 1));
+        decoder.setLimits(Limits.NONE);
+        for (int i = 0; i < expected.length; i++) {
+            assertSamePixels(img.name + ".gif, frame " + i, expected[i], gifImage.getFrame(i));
+        }
+    }
+
+    @Test
+    public void testLenientDiagnostics() throws IOException {
+        final TestImage img = IMAGES.get("hands");
+        final BufferedImage[] expected = readImageFrames(img);
+        final GifDecoder decoder = new GifDecoder();
+        final Diagnostics complete = decoder.decode(img.data).getDiagnostics();
+        assertTrue(complete.toString(), complete.isComplete() && complete.hasTrailer());
+        assertEquals(img.frames, complete.getFrameCount());
+
+        decoder.setLenient(true);
+        for (int cut = 1; cut < 8; cut++) {
+            final int length = img.data.length * cut / 8;
+            final byte[] truncated = Arrays.copyOf(img.data, length);
+            final GifImage gifImage = decoder.decode(truncated);
+            final Diagnostics diagnostics = gifImage.getDiagnostics();
+            assertFalse(diagnostics.toString(), diagnostics.isComplete() || diagnostics.hasTrailer());
+            assertTrue(diagnostics.toString(), diagnostics.getTruncationOffset() >= 0);
+            assertTrue(diagnostics.toString(), gifImage.getFrameCount() > 0);
+            // Frames drawn from complete image data match the original
+            for (int i = 0; i < gifImage.getFrameCount() && diagnostics.getMissingPixels(i) == 0; i++) {
+                assertSamePixels(img.name + ".gif cut at " + length + ", frame " + i, expected[i],
+                        gifImage.getFrame(i));
+            }
+        }
+        // Strict mode rejects truncated blocks, but not truncated image data
+        decoder.setLenient(false);
+        for (int length = 0; length < img.data.length; length += 97) {
+            final byte[] truncated = Arrays.copyOf(img.data, length);
+            try {
+                final GifImage gifImage = decoder.decode(truncated);
+                final long offset = gifImage.getDiagnostics().getTruncationOffset();
+                assertTrue(img.name + ".gif cut at " + length, offset == length || offset < 0);
+            } catch (final IOException e) {
+                assertEquals("Image is truncated.", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testIndexedColor() throws IOException {
+        int indexedImages = 0;
+        for (TestImage img : IMAGES.values()) {
+            final BufferedImage[] expected = readImageFrames(img);
+            final GifImage gifImage = GifDecoder.read(img.data);
+            if (!gifImage.canUseIndexedColor()) {
+                continue;
+            }
+            indexedImages++;
+            gifImage.setIndexedColor(true);
+            for (int i = 0; i < expected.length; i++) {
+                final BufferedImage frame = gifImage.getFrame(i);
+                assertEquals(img.name + ".gif, type", BufferedImage.TYPE_BYTE_INDEXED, frame.getType());
+                assertSamePixels(img.name + ".gif, frame " + i, expected[i], frame);
+            }
+        }
+        assertTrue("No image uses a single palette", indexedImages > 0);
+    }
+
+    @Test
+    public void testScaledFrames() throws IOException {
+        for (TestImage img : IMAGES.values()) {
+            final BufferedImage[] expected = readImageFrames(img);
+            final GifImage gifImage = GifDecoder.read(img.data);
+            final ScaledFrames scaled = gifImage.getScaledFrames(1, 3);
+            assertEquals(img.name + ".gif, width", (img.width + 2) / 3, scaled.getWidth(1));
+            assertEquals(img.name + ".gif, height", (img.height + 2) / 3, scaled.getHeight(1));
+            for (int i = 0; i < expected.length; i++) {
+                final BufferedImage[] frames = scaled.getFrame(i);
+                assertSamePixels(img.name + ".gif, frame " + i, expected[i], frames[0]);
+                if (i == 0) { // Drawn on an empty canvas, so it is an exact average
+                    assertAverage(img.name + ".gif, frame 0", expected[0], frames[1], 3);
+                }
+            }
+        }
+        // A block of 3000x3000 opaque pixels sums up to more than Integer.MAX_VALUE
+        final BufferedImage large = new BufferedImage(3000, 3000, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g = large.createGraphics();
+        g.setColor(new Color(0x336699));
+        g.fillRect(0, 0, 3000, 3000);
+        g.dispose();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(large, "gif", out);
+        final GifImage gifImage = GifDecoder.read(out.toByteArray());
+        final BufferedImage thumbnail = gifImage.getScaledFrames(gifImage.getScaleFactor(1, 1)).getFrame(0)[0];
+        assertEquals("1x1 thumbnail", 0xFF336699, thumbnail.getRGB(0, 0));
+    }
+
+    @Test
+    public void testConcurrentDecoding() throws IOException {
+        for (TestImage img : IMAGES.values()) {
+            final BufferedImage[] expected = readImageFrames(img);
+            final GifImage gifImage = GifDecoder.read(img.data);
+            gifImage.setDecodeExecutor(ForkJoinPool.commonPool());
+            gifImage.setCachePolicy(CachePolicy.maxFrames(1));
+            for (int i = expected.length - 1; i >= 0; i -= 5) {
+                assertSamePixels(img.name + ".gif, frame " + i, expected[i], gifImage.getFrame(i));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentGetFrame() throws Exception {
+        final CachePolicy[] policies = {CachePolicy.UNBOUNDED, CachePolicy.NONE, CachePolicy.maxFrames(2)};
+        final ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            for (TestImage img : IMAGES_SUBSET.values()) {
+                final BufferedImage[] expected = readImageFrames(img);
+                for (CachePolicy policy : policies) {
+                    final GifImage gifImage = GifDecoder.read(img.data);
+                    gifImage.setCachePolicy(policy);
+                    final List<Future<?>> results = new ArrayList<>();
+                    for (int t = 0; t < 4; t++) {
+                        final int seed = t;
+                        results.add(threads.submit(() -> {
+                            for (int n = 0; n < 2 * expected.length; n++) {
+                                final int i = (n * 7 + seed * 3) % expected.length;
+                                assertSamePixels(img.name + ".gif, frame " + i, expected[i], gifImage.getFrame(i));
+                            }
+                        }));
+                    }
+                    for (Future<?> result : results) {
+                        result.get();
+                    }
+                }
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchDecoding() throws Exception {
+        final List<TestImage> images = new ArrayList<>(IMAGES.values());
+        final List<Path> paths = new ArrayList<>();
+        for (TestImage img : images) {
+            paths.add(img.path);
+        }
+        try (BatchDecoder batch = new BatchDecoder()) {
+            final List<CompletableFuture<GifImage>> results = batch.submitAll(paths);
+            for (int n = 0; n < images.size(); n++) {
+                final TestImage img = images.get(n);
+                final BufferedImage[] expected = readImageFrames(img);
+                final GifImage gifImage = results.get(n).get();
+                assertEquals(img.name + ".gif, frames", expected.length, gifImage.getFrameCount());
+                for (int i = 0; i < expected.length; i++) {
+                    assertSamePixels(img.name + ".gif, frame " + i, expected[i], gifImage.getFrame(i));
+                }
+            }
+        }
+        // The limits of a given decoder apply to every image of the batch
+        final TestImage img = IMAGES.get("hands");
+        final GifDecoder decoder = new GifDecoder();
+        decoder.setLimits(Limits.NONE.withMaxFrames(img.frames - 1));
+        try (BatchDecoder batch = new BatchDecoder(decoder)) {
+            final ExecutionException e = assertThrows(ExecutionException.class, () -> batch.submit(img.path).get());
+            assertTrue(img.name + ".gif, cause", e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testReadFirstFrame() throws IOException {
+        for (TestImage img : IMAGES.values()) {
+            final BufferedImage expected = readImageFrames(img)[0];
+            assertSamePixels(img.name + ".gif, byte[]", expected, GifDecoder.readFirstFrame(img.data));
+            assertSamePixels(img.name + ".gif, path", expected, GifDecoder.readFirstFrame(img.path));
+            assertSamePixels(img.name + ".gif, stream", expected,
+                    GifDecoder.readFirstFrame(new ByteArrayInputStream(img.data)));
+        }
+    }
+
+    @Test
+    public void testFirstFrameWithinLimits() throws IOException {
+        final TestImage img = IMAGES.get("hands");
+        final GifDecoder decoder = new GifDecoder();
+        decoder.setLimits(Limits.NONE.withMaxCanvasPixels(img.width * img.height - 1));
+        assertThrows(IOException.class, () -> decoder.decodeFirstFrame(img.data));
+        assertThrows(IOException.class, () -> decoder.decodeFirstFrame(img.path));
+        assertThrows(IOException.class, () -> decoder.decodeFirstFrame(new ByteArrayInputStream(img.data)));
+        decoder.setLimits(Limits.NONE.withMaxCompressedBytes(img.data.length - 1));
+        assertThrows(IOException.class, () -> decoder.decodeFirstFrame(img.data));
+        decoder.setLimits(Limits.NONE.withTimeout(1, TimeUnit.NANOSECONDS));
+        assertThrows(InterruptedIOException.class, () -> decoder.decodeFirstFrame(img.data));
+
+        final int[] parsed = new int[1];
+        final List<FrameMetrics> drawn = new ArrayList<>();
+        decoder.setLimits(Limits.NONE);
+        decoder.setListener(new DecodeListener() {
+            @Override
+            public void imageParsed(final GifImage image, final long parseNanos, final long compressedBytes) {
+                parsed[0]++;
+            }
+
+            @Override
+            public void frameDrawn(final GifImage image, final FrameMetrics metrics) {
+                drawn.add(metrics);
+            }
+        });
+        final BufferedImage expected = readImageFrames(img)[0];
+        assertSamePixels("byte[]", expected, decoder.decodeFirstFrame(img.data));
+        assertSamePixels("stream", expected, decoder.decodeFirstFrame(new ByteArrayInputStream(img.data)));
+        assertEquals("images parsed", 2, parsed[0]);
+        assertEquals("frames drawn", 2, drawn.size());
+        assertEquals("frame index", 0, drawn.get(0).getFrameIndex());
+    }
+
+    @Test
+    public void testFrameDeltas() throws IOException {
+        final List<FrameMetrics> drawn = new ArrayList<>();
+        final GifDecoder decoder = new GifDecoder();
+        decoder.setListener(new DecodeListener() {
+            @Override
+            public void frameDrawn(final GifImage image, final FrameMetrics metrics) {
+                drawn.add(metrics);
+            }
+        });
+        for (TestImage img : IMAGES.values()) {
+            final BufferedImage[] expected = readImageFrames(img);
+            final GifImage gifImage = decoder.decode(img.data);
+            final BufferedImage canvas = new BufferedImage(img.width, img.height, BufferedImage.TYPE_INT_ARGB);
+            for (int i = 0; i < expected.length; i++) {
+                gifImage.getDelta(i).applyTo(canvas);
+                assertSamePixels(img.name + ".gif, frame " + i, expected[i], canvas);
+            }
+            // Even with the default cache policy, no frame has been cached
+            for (int i = 0; i < expected.length; i++) {
+                drawn.clear();
+                gifImage.getFrame(i);
+                assertFalse(img.name + ".gif, frame " + i + " cached", drawn.isEmpty());
+            }
+        }
+        // Random access yields the same deltas
+        for (TestImage img : IMAGES_SUBSET.values()) {
+            final BufferedImage[] expected = readImageFrames(img);
+            final GifImage gifImage = GifDecoder.read(img.data);
+            for (int i = expected.length - 1; i > 0; i -= 3) {
+                final FrameDelta delta = gifImage.getDelta(i);
+                final BufferedImage prev = new BufferedImage(img.width, img.height, BufferedImage.TYPE_INT_ARGB);
+                prev.getGraphics().drawImage(expected[i - 1], 0, 0, null);
+                delta.applyTo(prev);
+                assertSamePixels(img.name + ".gif, delta " + i, expected[i], prev);
+            }
+        }
+    }
+
+    /**
+     * A frame outside the canvas changes nothing, also when its area is
+     * cleared for the next frame.
+     */
+    @Test
+    public void testFrameDeltaOutsideCanvas() throws IOException {
+        final byte[] frame = gifWithCodes(4, 1, 2, 5);
+        final byte[] control = {0x21, (byte) 0xF9, 4, 2 << 2, 0, 0, 0, 0}; // Disposal 2
+        final ByteBuffer gif = ByteBuffer.allocate(3 * frame.length - 52 + control.length);
+        gif.put(frame, 0, frame.length - 1).put(control);
+        final int offCanvas = gif.position();
+        gif.put(frame, 25, frame.length - 26).put(frame, 25, frame.length - 25);
+        gif.put(offCanvas + 1, (byte) 100); // Frame 1 at x = 100
+        final GifImage gifImage = GifDecoder.read(gif.array());
+        assertEquals(3, gifImage.getFrameCount());
+        final BufferedImage canvas = new BufferedImage(2, 1, BufferedImage.TYPE_INT_ARGB);
+        for (int i = 0; i < 3; i++) {
+            final FrameDelta delta = gifImage.getDelta(i);
+            delta.applyTo(canvas);
+            assertSamePixels("Frame " + i, gifImage.getFrame(i), canvas);
+        }
+        final FrameDelta delta = gifImage.getDelta(1);
+        assertEquals("Width", 0, delta.getWidth());
+        assertEquals("Height", 0, delta.getHeight());
+        assertEquals("Pixels", 0, delta.getPixels().length);
+    }
+
+    @Test
+    public void testReadFromStream() throws IOException {
+        for (TestImage img : IMAGES.values()) {
+            final BufferedImage[] expected = readImageFrames(img);
+            final GifImage gifImage = GifDecoder.read(new ByteArrayInputStream(img.data));
+            assertEquals(img.name + ".gif, frames", expected.length, gifImage.getFrameCount());
+            for (int i = 0; i < expected.length; i++) {
+                assertSamePixels(img.name + ".gif, frame " + i, expected[i], gifImage.getFrame(i));
+            }
+        }
+    }
+
+    @Test
+    public void testReadTruncatedStream() throws IOException {
+        final GifDecoder decoder = new GifDecoder();
+        for (boolean lenient : new boolean[]{false, true}) {
+            decoder.setLenient(lenient);
+            for (String name : Arrays.asList("sample", "dance", "hands")) {
+                final TestImage img = IMAGES.get(name);
+                final int step = Math.max(1, img.data.length / 200);
+                for (int length = 0; length < img.data.length; length += step) {
+                    final String message = img.name + ".gif cut at " + length + (lenient ? ", lenient" : "");
+                    final byte[] data = Arrays.copyOf(img.data, length);
+                    GifImage fromBytes = null, fromStream = null;
+                    String bytesError = null, streamError = null;
+                    try {
+                        fromBytes = decoder.decode(data);
+                    } catch (final IOException e) {
+                        bytesError = e.getMessage();
+                    }
+                    try {
+                        fromStream = decoder.decode(new ByteArrayInputStream(data));
+                    } catch (final IOException e) {
+                        streamError = e.getMessage();
+                    }
+                    assertEquals(message, bytesError, streamError);
+                    if (fromBytes == null) {
+                        continue;
+                    }
+                    assertEquals(message + ", frames", fromBytes.getFrameCount(), fromStream.getFrameCount());
+                    assertEquals(message + ", truncated at", fromBytes.getDiagnostics().getTruncationOffset(),
+                            fromStream.getDiagnostics().getTruncationOffset());
+                    for (int i = 0; i < fromBytes.getFrameCount(); i++) {
+                        assertSamePixels(message + ", frame " + i, fromBytes.getFrame(i), fromStream.getFrame(i));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReadFromMappedFileAndBuffer() throws IOException {
+        for (TestImage img : IMAGES_SUBSET.values()) {
+            final BufferedImage[] expected = readImageFrames(img);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(img.data.length + 3);
+            buffer.put(new byte[3]).put(img.data).position(3);
+            final GifImage[] gifImages = {GifDecoder.read(img.path), GifDecoder.read(buffer)};
+            for (GifImage gifImage : gifImages) {
+                assertEquals(img.name + ".gif, frames", expected.length, gifImage.getFrameCount());
+                for (int i = 0; i < expected.length; i++) {
+                    assertSamePixels(img.name + ".gif, frame " + i, expected[i], gifImage.getFrame(i));
+                }
+            }
+            assertEquals(img.name + ".gif, buffer position", 3, buffer.position());
+        }
+    }
+
+    @Test
+    public void testStreamFrameByFrame() throws IOException {
+        for (TestImage img : IMAGES.values()) {
+            final BufferedImage[] expected = readImageFrames(img);
+            final GifStream stream = GifDecoder.stream(new ByteArrayInputStream(img.data));
+            assertEquals(img.name + ".gif, width", img.width, stream.getImage().getWidth());
+            int i = 0;
+            for (BufferedImage frame = stream.nextFrame(); frame != null; frame = stream.nextFrame(), i++) {
+                assertSamePixels(img.name + ".gif, frame " + i, expected[i], frame);
+            }
+            assertEquals(img.name + ".gif, frames", expected.length, i);
+        }
+    }
+
+    @Test
+    public void testAllocationBudgets() throws IOException {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        final Properties budgets = new Properties();
+        try (Reader in = Files.newBufferedReader(Paths.get(ALLOCATION_BUDGETS))) {
+            budgets.load(in);
+        }
+        final long thread = Thread.currentThread().getId();
+        for (TestImage img : IMAGES.values()) {
+            long allocated = Long.MAX_VALUE; // Least of several runs, the first one loads classes
+            for (int run = 0; run < 3; run++) {
+                final long start = threads.getThreadAllocatedBytes(thread);
+                final GifImage gifImage = GifDecoder.read(img.data);
+                gifImage.setCachePolicy(CachePolicy.NONE);
+                for (int i = 0; i < gifImage.getFrameCount(); i++) {
+                    gifImage.getFrame(i);
+                }
+                allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - start);
+            }
+            // Only count what the decoder allocates beyond the frames it returns
+            final long overhead = allocated - 4L * img.width * img.height * img.frames;
+            final long perFrame = overhead / img.frames;
+            final double perInputByte = (double) overhead / img.data.length;
+            final String measured = String.format(Locale.ROOT, "%s.perFrame=%d, %s.perInputByte=%.2f", img.name,
+                    perFrame, img.name, perInputByte);
+            final String maxPerFrame = budgets.getProperty(img.name + ".perFrame");
+            final String maxPerInputByte = budgets.getProperty(img.name + ".perInputByte");
+            assertTrue("No allocation budget for " + img.name + ".gif, measured " + measured,
+                    maxPerFrame != null && maxPerInputByte != null);
+            assertTrue(img.name + ".gif exceeds allocation budget, measured " + measured,
+                    perFrame <= Long.parseLong(maxPerFrame) && perInputByte <= Double.parseDouble(maxPerInputByte));
+        }
+    }
+
+    static void assertAverage(final String message, final BufferedImage expected, final BufferedImage actual,
+                              final int factor) {
+        for (int y = 0; y < actual.getHeight(); y++) {
+            for (int x = 0; x < actual.getWidth(); x++) {
+                final int[] sum = new int[4];
+                int pixels = 0;
+                for (int sy = y * factor; sy < Math.min(y * factor + factor, expected.getHeight()); sy++) {
+                    for (int sx = x * factor; sx < Math.min(x * factor + factor, expected.getWidth()); sx++) {
+                        final int argb = expected.getRGB(sx, sy), a = argb >>> 24;
+                        sum[0] += a;
+                        for (int c = 1; c < 4; c++) {
+                            sum[c] += (argb >>> (24 - 8 * c) & 0xFF) * a / 255; // Premultiplied
+                        }
+                        pixels++;
+                    }
+                }
+                final int actualPx = ((DataBufferInt) actual.getRaster().getDataBuffer()).getData()[y * actual.getWidth() + x];
+                for (int c = 0; c < 4; c++) {
+                    final int average = (sum[c] + pixels / 2) / pixels;
+                    final int value = actualPx >>> (24 - 8 * c) & 0xFF;
+                    assertTrue(message + " at " + x + "," + y, Math.abs(average - value) <= 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param codes 3 bit LZW codes of a 2x1 frame with the colors black, red,
+     *              green and blue
+     * @return The GIF image
+     */
+    static byte[] gifWithCodes(final int... codes) {
+        final byte[] data = new byte[(3 * codes.length + 7) / 8];
+        for (int i = 0; i < codes.length; i++) {
+            for (int bit = 0; bit < 3; bit++) {
+                data[(3 * i + bit) / 8] |= (codes[i] >>> bit & 1) << (3 * i + bit) % 8; // LSB first
+            }
+        }
+        final ByteBuffer gif = ByteBuffer.allocate(39 + data.length);
+        gif.put("GIF89a".getBytes()).put(new byte[]{2, 0, 1, 0, (byte) 0x81, 0, 0}); // 4 global colors
+        gif.put(new byte[]{0, 0, 0, -1, 0, 0, 0, -1, 0, 0, 0, -1});
+        gif.put(new byte[]{0x2C, 0, 0, 0, 0, 2, 0, 1, 0, 0}); // Image descriptor
+        gif.put((byte) 2).put((byte) data.length).put(data).put((byte) 0); // LZW minimum code size 2
+        return gif.put((byte) 0x3B).array();
+    }
+
+    /**
+     * @return CRC32 of the image's ARGB pixels, in hex
+     */
+    static String checksum(final BufferedImage img) {
+        final int w = img.getWidth(), h = img.getHeight();
+        final ByteBuffer argb = ByteBuffer.allocate(4 * w * h);
+        argb.asIntBuffer().put(img.getRGB(0, 0, w, h, null, 0, w));
+        final CRC32 crc = new CRC32();
+        crc.update(argb.array(), 0, argb.capacity());
+        return Long.toHexString(crc.getValue());
+    }
+
+    static void assertSamePixels(String message, BufferedImage expected, BufferedImage actual) {
+        final int w = expected.getWidth(), h = expected.getHeight();
+        assertEquals(message + ", width", w, actual.getWidth());
+        assertEquals(message + ", height", h, actual.getHeight());
+        assertArrayEquals(message, expected.getRGB(0, 0, w, h, null, 0, w), actual.getRGB(0, 0, w, h, null, 0, w));
+    }
+
     @Override
     BufferedImage[] readImageFrames(TestImage img) {
         try {